@@ -3,4 +3,4 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp . -d classes ir/Engine.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/NormalizationType.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenTest.java
\ No newline at end of file
+javac -cp . -d classes ir/BlockTermDictionary.java ir/EncodedPostingsIterator.java ir/ConcurrentFileReader.java ir/ArchiveReader.java ir/FileManifest.java ir/SegmentedPostingsIterator.java ir/DocBitmap.java ir/Engine.java ir/HashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/IndexingPipeline.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/ListPostingsIterator.java ir/MappedFile.java ir/MergeScheduler.java ir/NormalizationType.java ir/PatternSet.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsIterator.java ir/PostingsCodec.java ir/PostingsBuffer.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/SearchBenchmark.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/TermTable.java ir/Tokenizer.java ir/TokenizerBenchmark.java ir/TokenTest.java ir/Utf8Tokenizer.java
\ No newline at end of file
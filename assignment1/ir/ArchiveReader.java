@@ -0,0 +1,493 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/*
+ *   Reads the documents of a container file in one sequential pass,
+ *   without extracting them: the entries of a tar file (optionally
+ *   gzipped) or a zip file, or the lines of a JSONL file, each a JSON
+ *   object holding one document.
+ *
+ *   A corpus of many small files costs an open, a stat and a close per
+ *   file; packed into one container it is read like one big file.
+ *
+ *   The name of a tar or zip entry is its path in the container, so that
+ *   a tar file made of a directory gives the documents the names indexing
+ *   the directory would. A JSON document's text is its "text" field (or
+ *   "body", "contents" or "content"), and its name the "id" field (or
+ *   "name", "url" or "title"), or the file name and the line number if it
+ *   has none of these. Lines that are not JSON objects with a text are
+ *   skipped with a warning.
+ *
+ *   The bytes of each document are read into a buffer of the reader,
+ *   which is reused for the next one. A reader is not thread-safe.
+ */
+public class ArchiveReader {
+
+    /** Gets the documents of a container. */
+    public interface DocumentHandler {
+        /** Gets the UTF-8 bytes <code>content[0..length)</code> of document <code>name</code>. */
+        void document( String name, byte[] content, int length ) throws IOException;
+    }
+
+
+    /** The fields holding the text of a JSON document, in order of preference. */
+    static final String[] TEXT_FIELDS = { "text", "body", "contents", "content" };
+
+    /** The fields holding the name of a JSON document, in order of preference. */
+    static final String[] NAME_FIELDS = { "id", "name", "url", "title" };
+
+    /** Size of a tar block. */
+    static final int TAR_BLOCK = 512;
+
+
+    /** The bytes of the current document. */
+    private byte[] buffer = new byte[1 << 16];
+
+    /** Encodes the text of JSON documents. */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+
+    /**
+     *  Returns true if <code>f</code> is a container this class reads,
+     *  judging by its name.
+     */
+    public static boolean isArchive( File f ) {
+        String name = f.getName().toLowerCase();
+        return name.endsWith( ".tar" ) || name.endsWith( ".tar.gz" ) || name.endsWith( ".tgz" ) ||
+            name.endsWith( ".zip" ) || name.endsWith( ".jsonl" );
+    }
+
+
+    /**
+     *  Passes the documents of container <code>f</code> to the handler, in
+     *  the order they are stored.
+     */
+    public void read( File f, DocumentHandler handler ) throws IOException {
+        String name = f.getName().toLowerCase();
+        try ( InputStream in = new BufferedInputStream( new FileInputStream( f ), 1 << 16 )) {
+            if ( name.endsWith( ".zip" )) {
+                readZip( in, handler );
+            } else if ( name.endsWith( ".jsonl" )) {
+                readJsonLines( f, in, handler );
+            } else if ( name.endsWith( ".tar" )) {
+                readTar( in, handler );
+            } else {
+                readTar( new GZIPInputStream( in, 1 << 16 ), handler );
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private void readZip( InputStream in, DocumentHandler handler ) throws IOException {
+        ZipInputStream zip = new ZipInputStream( in, StandardCharsets.UTF_8 );
+        ZipEntry entry;
+        while (( entry = zip.getNextEntry() ) != null ) {
+            if ( !entry.isDirectory() ) {
+                int length = readFully( zip, entry.getSize() );
+                handler.document( entry.getName(), buffer, length );
+            }
+        }
+    }
+
+
+    /**
+     *  Reads a tar file: a 512-byte header per entry, followed by its
+     *  bytes padded to a whole block, and two blocks of zeros at the end.
+     *  Names longer than the header holds are read from GNU long name
+     *  entries and pax headers.
+     */
+    private void readTar( InputStream in, DocumentHandler handler ) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while ( readBlock( in, header )) {
+            if ( isZeros( header )) {
+                return;
+            }
+            long size = tarSize( header );
+            char type = (char) header[156];
+            if ( type == '0' || type == '\0' || type == '7' ) {
+                String name = longName != null ? longName : tarName( header );
+                longName = null;
+                int length = readFully( in, size );
+                handler.document( name, buffer, length );
+            } else if ( type == 'L' ) {
+                int length = readFully( in, size );
+                longName = cString( buffer, 0, length );
+            } else if ( type == 'x' ) {
+                int length = readFully( in, size );
+                String path = paxPath( buffer, length );
+                if ( path != null ) {
+                    longName = path;
+                }
+            } else {
+                // Directories, links, global headers, ...
+                skipFully( in, size );
+            }
+            skipFully( in, ( TAR_BLOCK - size % TAR_BLOCK ) % TAR_BLOCK );
+        }
+    }
+
+
+    /** Reads a whole block, or returns false at the end of the stream. */
+    private static boolean readBlock( InputStream in, byte[] block ) throws IOException {
+        int n = 0;
+        while ( n < block.length ) {
+            int read = in.read( block, n, block.length - n );
+            if ( read < 0 ) {
+                if ( n == 0 ) {
+                    return false;
+                }
+                throw new EOFException( "Truncated tar header" );
+            }
+            n += read;
+        }
+        return true;
+    }
+
+
+    private static boolean isZeros( byte[] block ) {
+        for ( byte b : block ) {
+            if ( b != 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /** The name in a tar header, with the ustar prefix if there is one. */
+    private static String tarName( byte[] header ) {
+        String name = cString( header, 0, 100 );
+        if ( header[257] == 'u' && header[258] == 's' && header[259] == 't' &&
+             header[260] == 'a' && header[261] == 'r' ) {
+            String prefix = cString( header, 345, 155 );
+            if ( !prefix.isEmpty() ) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+
+    /** The size in a tar header: octal digits, or big-endian binary if the first byte has its high bit set. */
+    private static long tarSize( byte[] header ) throws IOException {
+        long size = 0;
+        if (( header[124] & 0x80 ) != 0 ) {
+            for ( int i=125; i<136; i++ ) {
+                size = ( size << 8 ) | ( header[i] & 0xff );
+            }
+            return size;
+        }
+        for ( int i=124; i<136; i++ ) {
+            byte b = header[i];
+            if ( b >= '0' && b <= '7' ) {
+                size = 8*size + ( b - '0' );
+            } else if ( b != ' ' && b != 0 ) {
+                throw new IOException( "Bad size in tar header" );
+            } else if ( size > 0 ) {
+                break;
+            }
+        }
+        return size;
+    }
+
+
+    /** The "path" record of a pax header, or null if there is none. */
+    private static String paxPath( byte[] records, int length ) {
+        String path = null;
+        int i = 0;
+        while ( i < length ) {
+            int space = i;
+            while ( space < length && records[space] != ' ' ) {
+                space++;
+            }
+            int recordLength;
+            try {
+                recordLength = Integer.parseInt( new String( records, i, space - i, StandardCharsets.US_ASCII ));
+            } catch ( NumberFormatException e ) {
+                return path;
+            }
+            if ( recordLength <= 0 || i + recordLength > length ) {
+                return path;
+            }
+            String record = new String( records, space + 1, i + recordLength - space - 2, StandardCharsets.UTF_8 );
+            if ( record.startsWith( "path=" )) {
+                path = record.substring( 5 );
+            }
+            i += recordLength;
+        }
+        return path;
+    }
+
+
+    /** The UTF-8 string in <code>bytes[start..start+length)</code>, up to the first 0 byte. */
+    private static String cString( byte[] bytes, int start, int length ) {
+        int end = start;
+        while ( end < start + length && bytes[end] != 0 ) {
+            end++;
+        }
+        return new String( bytes, start, end - start, StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     *  Reads <code>size</code> bytes into the buffer, or up to the end of
+     *  the stream if the size is not known (-1), and returns the number read.
+     */
+    private int readFully( InputStream in, long size ) throws IOException {
+        if ( size > Integer.MAX_VALUE - 8 ) {
+            throw new IOException( "Document too large: " + size + " bytes" );
+        }
+        if ( size > buffer.length ) {
+            buffer = new byte[(int) size];
+        }
+        int length = 0;
+        while ( size < 0 || length < size ) {
+            if ( length == buffer.length ) {
+                buffer = Arrays.copyOf( buffer, 2*buffer.length );
+            }
+            int n = in.read( buffer, length, (int) ( size < 0 ? buffer.length : size ) - length );
+            if ( n < 0 ) {
+                if ( size < 0 ) {
+                    break;
+                }
+                throw new EOFException( "Truncated entry" );
+            }
+            length += n;
+        }
+        return length;
+    }
+
+
+    private static void skipFully( InputStream in, long n ) throws IOException {
+        while ( n > 0 ) {
+            long skipped = in.skip( n );
+            if ( skipped <= 0 ) {
+                if ( in.read() < 0 ) {
+                    throw new EOFException( "Truncated entry" );
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private void readJsonLines( File f, InputStream in, DocumentHandler handler ) throws IOException {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( in, StandardCharsets.UTF_8 ));
+        String line;
+        int lineNumber = 0;
+        while (( line = reader.readLine() ) != null ) {
+            lineNumber++;
+            if ( line.trim().isEmpty() ) {
+                continue;
+            }
+            JsonObject document;
+            try {
+                document = new JsonObject( line );
+            } catch ( IllegalArgumentException e ) {
+                System.err.println( "Warning: " + f.getPath() + ":" + lineNumber + ": " + e.getMessage() );
+                continue;
+            }
+            String text = document.first( TEXT_FIELDS );
+            if ( text == null ) {
+                System.err.println( "Warning: " + f.getPath() + ":" + lineNumber + ": no text field" );
+                continue;
+            }
+            String name = document.first( NAME_FIELDS );
+            if ( name == null ) {
+                name = f.getPath() + ":" + lineNumber;
+            }
+            int length = encode( text );
+            handler.document( name, buffer, length );
+        }
+    }
+
+
+    /** Encodes <code>text</code> as UTF-8 into the buffer and returns the number of bytes. */
+    private int encode( String text ) {
+        int maxLength = (int) Math.min( Integer.MAX_VALUE - 8, 3L * text.length() );
+        if ( buffer.length < maxLength ) {
+            buffer = new byte[maxLength];
+        }
+        ByteBuffer out = ByteBuffer.wrap( buffer );
+        encoder.reset();
+        encoder.encode( CharBuffer.wrap( text ), out, true );
+        encoder.flush( out );
+        return out.position();
+    }
+
+
+    /**
+     *  The members of a JSON object whose values are strings or numbers.
+     *  Other values are parsed and skipped.
+     */
+    static class JsonObject {
+        final java.util.HashMap<String,String> members = new java.util.HashMap<String,String>();
+        final String s;
+        int i = 0;
+
+        JsonObject( String s ) {
+            this.s = s;
+            expect( '{' );
+            if ( peek() != '}' ) {
+                do {
+                    String key = string();
+                    expect( ':' );
+                    String value = value();
+                    if ( value != null && !members.containsKey( key )) {
+                        members.put( key, value );
+                    }
+                } while ( accept( ',' ));
+            }
+            expect( '}' );
+            if ( peek() != 0 ) {
+                throw new IllegalArgumentException( "text after the JSON object" );
+            }
+        }
+
+        /** The value of the first of the keys that the object has, or null. */
+        String first( String[] keys ) {
+            for ( String key : keys ) {
+                String value = members.get( key );
+                if ( value != null ) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /** A value: the string of a string or a number, or null for others. */
+        private String value() {
+            char c = peek();
+            if ( c == '"' ) {
+                return string();
+            } else if ( c == '{' || c == '[' ) {
+                skipNested();
+                return null;
+            } else if ( c == '-' || ( c >= '0' && c <= '9' )) {
+                int start = i;
+                while ( i < s.length() && "+-.eE0123456789".indexOf( s.charAt( i )) >= 0 ) {
+                    i++;
+                }
+                return s.substring( start, i );
+            } else if ( s.startsWith( "true", i ) || s.startsWith( "null", i )) {
+                i += 4;
+                return null;
+            } else if ( s.startsWith( "false", i )) {
+                i += 5;
+                return null;
+            }
+            throw new IllegalArgumentException( "unexpected character at column " + ( i + 1 ));
+        }
+
+        /** Skips an object or array. */
+        private void skipNested() {
+            char close = s.charAt( i ) == '{' ? '}' : ']';
+            i++;
+            if ( accept( close )) {
+                return;
+            }
+            do {
+                if ( close == '}' ) {
+                    string();
+                    expect( ':' );
+                }
+                value();
+            } while ( accept( ',' ));
+            expect( close );
+        }
+
+        private String string() {
+            expect( '"' );
+            StringBuilder b = null;
+            int start = i;
+            while ( true ) {
+                if ( i >= s.length() ) {
+                    throw new IllegalArgumentException( "unterminated string" );
+                }
+                char c = s.charAt( i++ );
+                if ( c == '"' ) {
+                    return b == null ? s.substring( start, i - 1 ) : b.toString();
+                }
+                if ( c == '\\' ) {
+                    if ( b == null ) {
+                        b = new StringBuilder( s.length() - start );
+                        b.append( s, start, i - 1 );
+                    }
+                    if ( i >= s.length() ) {
+                        throw new IllegalArgumentException( "unterminated string" );
+                    }
+                    c = s.charAt( i++ );
+                    switch ( c ) {
+                    case 'b': b.append( '\b' ); break;
+                    case 'f': b.append( '\f' ); break;
+                    case 'n': b.append( '\n' ); break;
+                    case 'r': b.append( '\r' ); break;
+                    case 't': b.append( '\t' ); break;
+                    case 'u':
+                        if ( i + 4 > s.length() ) {
+                            throw new IllegalArgumentException( "bad escape at column " + i );
+                        }
+                        try {
+                            b.append( (char) Integer.parseInt( s.substring( i, i + 4 ), 16 ));
+                        } catch ( NumberFormatException e ) {
+                            throw new IllegalArgumentException( "bad escape at column " + i );
+                        }
+                        i += 4;
+                        break;
+                    default: b.append( c );
+                    }
+                } else if ( b != null ) {
+                    b.append( c );
+                }
+            }
+        }
+
+        /** The next character that is not white space, or 0 at the end. */
+        private char peek() {
+            while ( i < s.length() && Character.isWhitespace( s.charAt( i ))) {
+                i++;
+            }
+            return i < s.length() ? s.charAt( i ) : 0;
+        }
+
+        private boolean accept( char c ) {
+            if ( peek() == c ) {
+                i++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect( char c ) {
+            if ( !accept( c )) {
+                throw new IllegalArgumentException( "expected '" + c + "' at column " + ( i + 1 ));
+            }
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/*
+ *   A term dictionary stored as sorted, front-coded blocks.
+ *
+ *   The terms are written in ascending order, BLOCK_SIZE terms per block.
+ *   The first term of a block is stored in full; every other term stores
+ *   the number of leading characters it shares with the previous term and
+ *   the remaining suffix. Each term also stores where its record starts
+ *   in the data file (as the distance from the end of the previous record,
+ *   which is 0 when the records are written back to back) and its size.
+ *
+ *   The first term and the file offset of every block are kept in memory,
+ *   so a lookup is a binary search over the blocks followed by a scan of
+ *   a single block. Since the terms are sorted, the dictionary can also
+ *   enumerate them in order and answer prefix queries, which the hash
+ *   table dictionary cannot.
+ *
+ *   File layout:
+ *
+ *      int MAGIC, int BLOCK_SIZE
+ *      blocks
+ *      block index: (varint length, first term (UTF-8), varlong offset) per block
+ *      long indexOffset, int blockCount, int termCount
+ */
+public class BlockTermDictionary {
+
+    /** The first four bytes of a block dictionary file ("IRTD"). */
+    public static final int MAGIC = 0x49525444;
+
+    /** Number of terms per block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** Size of the header and of the footer. */
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 16;
+
+    /**
+     *  The location of the record of one term in the data file.
+     */
+    public static class Entry {
+        public final String term;
+        public final long ptr;
+        public final int size;
+
+        public Entry( String term, long ptr, int size ) {
+            this.term = term;
+            this.ptr = ptr;
+            this.size = size;
+        }
+    }
+
+    /** The file holding the dictionary. */
+    private final RandomAccessFile file;
+
+    /** The same file mapped into memory, if lookups should use the mapping. */
+    private MappedFile mapped = null;
+
+    /** The first term of every block. */
+    private final String[] firstTerms;
+
+    /** The file offset of every block; the last element is the offset of the block index. */
+    private final long[] blockOffsets;
+
+    /** The total number of terms. */
+    private final int termCount;
+
+
+    // ==================================================================
+    //
+    //  Reading
+
+
+    /**
+     *  Returns true if the file holds a block dictionary (as opposed to,
+     *  for example, a hash table dictionary).
+     */
+    public static boolean isBlockDictionary( RandomAccessFile file ) throws IOException {
+        if ( file.length() < HEADER_SIZE + FOOTER_SIZE ) {
+            return false;
+        }
+        file.seek( 0 );
+        return file.readInt() == MAGIC;
+    }
+
+
+    /**
+     *  Opens a dictionary and reads its block index into memory.
+     */
+    public BlockTermDictionary( RandomAccessFile file ) throws IOException {
+        this.file = file;
+        long length = file.length();
+        file.seek( length - FOOTER_SIZE );
+        long indexOffset = file.readLong();
+        int blockCount = file.readInt();
+        termCount = file.readInt();
+
+        byte[] index = new byte[(int) ( length - FOOTER_SIZE - indexOffset )];
+        file.seek( indexOffset );
+        file.readFully( index );
+        ByteBuffer buf = ByteBuffer.wrap( index );
+        firstTerms = new String[blockCount];
+        blockOffsets = new long[blockCount + 1];
+        for ( int i = 0; i < blockCount; i++ ) {
+            int termLength = PostingsCodec.readVarInt( buf );
+            firstTerms[i] = new String( index, buf.position(), termLength, StandardCharsets.UTF_8 );
+            buf.position( buf.position() + termLength );
+            blockOffsets[i] = readVarLong( buf );
+        }
+        blockOffsets[blockCount] = indexOffset;
+    }
+
+
+    /**
+     *  Serves block reads from a mapping of the dictionary file from now on.
+     */
+    public void map( MappedFile mapped ) {
+        this.mapped = mapped;
+    }
+
+
+    /** The number of terms in the dictionary. */
+    public int size() {
+        return termCount;
+    }
+
+
+    /** The number of bytes taken by the in-memory block index (approximately). */
+    public long indexMemory() {
+        long bytes = 8L * blockOffsets.length;
+        for ( String term : firstTerms ) {
+            bytes += 40 + 2 * term.length();
+        }
+        return bytes;
+    }
+
+
+    /**
+     *  Returns the entry of a term, or null if the term is not in the dictionary.
+     */
+    public Entry lookup( String term ) throws IOException {
+        int block = findBlock( term );
+        if ( block < 0 ) {
+            return null;
+        }
+        BlockReader reader = new BlockReader( block );
+        while ( reader.next() ) {
+            int cmp = reader.compareTo( term );
+            if ( cmp == 0 ) {
+                return reader.entry();
+            }
+            if ( cmp > 0 ) {
+                break;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns all terms that start with the given prefix, in sorted order.
+     */
+    public List<Entry> prefixScan( String prefix ) throws IOException {
+        ArrayList<Entry> result = new ArrayList<Entry>();
+        Iterator<Entry> it = iterator( prefix );
+        while ( it.hasNext() ) {
+            Entry entry = it.next();
+            if ( !entry.term.startsWith( prefix )) {
+                break;
+            }
+            result.add( entry );
+        }
+        return result;
+    }
+
+
+    /**
+     *  Enumerates all terms in sorted order.
+     */
+    public Iterator<Entry> iterator() throws IOException {
+        return iterator( "" );
+    }
+
+
+    /**
+     *  Enumerates the terms in sorted order, starting with the first term
+     *  that is greater than or equal to <code>from</code>.
+     */
+    public Iterator<Entry> iterator( String from ) throws IOException {
+        if ( firstTerms.length == 0 ) {
+            return Collections.emptyIterator();
+        }
+        int block = Math.max( findBlock( from ), 0 );
+        final BlockReader first = new BlockReader( block );
+        // Skip the terms of the first block that come before 'from'
+        Entry start = null;
+        while ( first.next() ) {
+            if ( first.compareTo( from ) >= 0 ) {
+                start = first.entry();
+                break;
+            }
+        }
+        final Entry firstEntry = start;
+        final int firstBlock = block;
+        return new Iterator<Entry>() {
+            BlockReader reader = first;
+            int currentBlock = firstBlock;
+            Entry next = firstEntry;
+
+            public boolean hasNext() {
+                if ( next == null ) {
+                    advance();
+                }
+                return next != null;
+            }
+
+            public Entry next() {
+                if ( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                Entry result = next;
+                next = null;
+                return result;
+            }
+
+            private void advance() {
+                try {
+                    while ( next == null ) {
+                        if ( reader.next() ) {
+                            next = reader.entry();
+                        } else if ( currentBlock + 1 < firstTerms.length ) {
+                            reader = new BlockReader( ++currentBlock );
+                        } else {
+                            return;
+                        }
+                    }
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+            }
+        };
+    }
+
+
+    /**
+     *  Returns the last block whose first term is less than or equal to
+     *  the given term, or -1 if the term comes before all blocks.
+     */
+    private int findBlock( String term ) {
+        int low = 0;
+        int high = firstTerms.length - 1;
+        int found = -1;
+        while ( low <= high ) {
+            int mid = ( low + high ) >>> 1;
+            if ( firstTerms[mid].compareTo( term ) <= 0 ) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     *  Reads the bytes of one block.
+     */
+    private ByteBuffer readBlock( int block ) throws IOException {
+        int size = (int) ( blockOffsets[block + 1] - blockOffsets[block] );
+        if ( mapped != null ) {
+            return mapped.slice( blockOffsets[block], size );
+        }
+        byte[] bytes = new byte[size];
+        synchronized ( file ) {
+            file.seek( blockOffsets[block] );
+            file.readFully( bytes );
+        }
+        return ByteBuffer.wrap( bytes );
+    }
+
+
+    /**
+     *  Decodes the terms of one block one at a time.
+     */
+    private class BlockReader {
+        final ByteBuffer buf;
+        final int count;
+        int read = 0;
+        char[] term = new char[32];
+        int termLength = 0;
+        long ptr = 0;
+        int size = 0;
+
+        BlockReader( int block ) throws IOException {
+            buf = readBlock( block );
+            count = PostingsCodec.readVarInt( buf );
+        }
+
+        /** Decodes the next term; returns false at the end of the block. */
+        boolean next() {
+            if ( read == count ) {
+                return false;
+            }
+            int prefix = PostingsCodec.readVarInt( buf );
+            int suffixBytes = PostingsCodec.readVarInt( buf );
+            byte[] bytes = new byte[suffixBytes];
+            buf.get( bytes );
+            String suffix = new String( bytes, StandardCharsets.UTF_8 );
+            termLength = prefix + suffix.length();
+            if ( termLength > term.length ) {
+                term = Arrays.copyOf( term, Math.max( 2*term.length, termLength ));
+            }
+            suffix.getChars( 0, suffix.length(), term, prefix );
+            ptr = ( read == 0 ? 0 : ptr + size ) + readVarLong( buf );
+            size = PostingsCodec.readVarInt( buf );
+            read++;
+            return true;
+        }
+
+        /** Compares the current term with <code>other</code>, like String.compareTo. */
+        int compareTo( String other ) {
+            int n = Math.min( termLength, other.length() );
+            for ( int i = 0; i < n; i++ ) {
+                if ( term[i] != other.charAt( i )) {
+                    return term[i] - other.charAt( i );
+                }
+            }
+            return termLength - other.length();
+        }
+
+        Entry entry() {
+            return new Entry( new String( term, 0, termLength ), ptr, size );
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Writing
+
+
+    /**
+     *  Writes a block dictionary. The terms must be added in ascending order.
+     */
+    public static class Writer implements Closeable {
+
+        private final RandomAccessFile file;
+
+        /** The block being filled. */
+        private ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private int blockTerms = 0;
+
+        /** The block index, written after the last block. */
+        private ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private int blockCount = 0;
+
+        private long offset = HEADER_SIZE;
+        private String previous = null;
+        private long previousEnd = 0;
+        private int termCount = 0;
+
+        /**
+         *  Starts writing a dictionary at the beginning of the file. Whatever
+         *  the file held before is overwritten.
+         */
+        public Writer( RandomAccessFile file ) throws IOException {
+            this.file = file;
+            file.seek( 0 );
+            file.writeInt( MAGIC );
+            file.writeInt( BLOCK_SIZE );
+        }
+
+        /**
+         *  Adds the next term and the location of its record.
+         */
+        public void add( String term, long ptr, int size ) throws IOException {
+            if ( previous != null && previous.compareTo( term ) >= 0 ) {
+                throw new IllegalArgumentException( "Terms must be added in ascending order: '" + term + "' after '" + previous + "'" );
+            }
+            if ( blockTerms == 0 ) {
+                byte[] termBytes = term.getBytes( StandardCharsets.UTF_8 );
+                writeVarLong( index, termBytes.length );
+                index.write( termBytes, 0, termBytes.length );
+                writeVarLong( index, offset );
+                blockCount++;
+                writePrefixed( term, 0 );
+                writeVarLong( block, ptr );
+            } else {
+                writePrefixed( term, commonPrefix( previous, term ));
+                writeVarLong( block, ptr - previousEnd );
+            }
+            writeVarLong( block, size );
+            previous = term;
+            previousEnd = ptr + size;
+            termCount++;
+            if ( ++blockTerms == BLOCK_SIZE ) {
+                flushBlock();
+            }
+        }
+
+        private void writePrefixed( String term, int prefix ) {
+            byte[] suffix = term.substring( prefix ).getBytes( StandardCharsets.UTF_8 );
+            writeVarLong( block, prefix );
+            writeVarLong( block, suffix.length );
+            block.write( suffix, 0, suffix.length );
+        }
+
+        private void flushBlock() throws IOException {
+            if ( blockTerms == 0 ) {
+                return;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream( block.size() + 5 );
+            writeVarLong( out, blockTerms );
+            block.writeTo( out );
+            file.seek( offset );
+            file.write( out.toByteArray() );
+            offset += out.size();
+            block.reset();
+            blockTerms = 0;
+        }
+
+        /**
+         *  Writes the last block, the block index and the footer, and cuts
+         *  off anything the file held beyond them.
+         */
+        public void close() throws IOException {
+            flushBlock();
+            long indexOffset = offset;
+            file.seek( indexOffset );
+            file.write( index.toByteArray() );
+            file.writeLong( indexOffset );
+            file.writeInt( blockCount );
+            file.writeInt( termCount );
+            file.setLength( file.getFilePointer() );
+        }
+    }
+
+
+    static int commonPrefix( String a, String b ) {
+        int n = Math.min( a.length(), b.length() );
+        int i = 0;
+        while ( i < n && a.charAt( i ) == b.charAt( i )) {
+            i++;
+        }
+        // Do not split a surrogate pair between prefix and suffix
+        if ( i > 0 && Character.isHighSurrogate( a.charAt( i - 1 ))) {
+            i--;
+        }
+        return i;
+    }
+
+
+    static void writeVarLong( ByteArrayOutputStream out, long value ) {
+        while (( value & ~0x7FL ) != 0 ) {
+            out.write( (int) (( value & 0x7F ) | 0x80 ));
+            value >>>= 7;
+        }
+        out.write( (int) value );
+    }
+
+
+    static long readVarLong( ByteBuffer buf ) {
+        int b = buf.get();
+        long value = b & 0x7F;
+        int shift = 7;
+        while (( b & 0x80 ) != 0 ) {
+            b = buf.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ *   Reads many files at the same time, for corpora of small files where
+ *   the time to open and read each file (on a cold cache or a network
+ *   disk) matters more than the bytes read.
+ *
+ *   Every file is read by a task of its own, and a semaphore caps the
+ *   number of reads in flight. On a JVM with virtual threads (Java 21) the
+ *   tasks run in virtual threads, one per file; they are found by
+ *   reflection, so that the code still compiles and runs on older JVMs,
+ *   where a pool of as many platform threads as reads in flight is used
+ *   instead.
+ */
+public class ConcurrentFileReader {
+
+    /** Runs the reads. */
+    private final ExecutorService executor;
+
+    /** True if the reads run in virtual threads. */
+    private final boolean virtual;
+
+    /** Permits for the reads in flight. */
+    private final Semaphore permits;
+
+    /** Number of reads in flight, and the most there have been. */
+    private final AtomicInteger reading = new AtomicInteger();
+    private final AtomicInteger maxReading = new AtomicInteger();
+
+
+    public ConcurrentFileReader( int maxReads ) {
+        permits = new Semaphore( maxReads );
+        ExecutorService virtualExecutor = null;
+        try {
+            virtualExecutor = (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        } catch ( ReflectiveOperationException | RuntimeException e ) {
+            // No virtual threads in this JVM
+        }
+        virtual = virtualExecutor != null;
+        if ( virtual ) {
+            executor = virtualExecutor;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool( maxReads, r -> {
+                Thread t = new Thread( r, "file-reader-" + count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            });
+        }
+    }
+
+
+    /**
+     *  Reads the files and returns their bytes, in the same order. A file
+     *  that cannot be read, or is null, gets null.
+     */
+    public byte[][] readAll( List<File> files ) throws InterruptedException {
+        ArrayList<Future<byte[]>> reads = new ArrayList<Future<byte[]>>( files.size() );
+        for ( File f : files ) {
+            reads.add( f == null ? null : executor.submit( () -> read( f )));
+        }
+        byte[][] contents = new byte[files.size()][];
+        for ( int i=0; i<contents.length; i++ ) {
+            if ( reads.get( i ) == null ) {
+                continue;
+            }
+            try {
+                contents[i] = reads.get( i ).get();
+            } catch ( ExecutionException e ) {
+                System.err.println( "Warning: IOException during indexing." );
+            }
+        }
+        return contents;
+    }
+
+
+    private byte[] read( File f ) throws IOException, InterruptedException {
+        permits.acquire();
+        try {
+            maxReading.accumulateAndGet( reading.incrementAndGet(), Math::max );
+            return Files.readAllBytes( f.toPath() );
+        } finally {
+            reading.decrementAndGet();
+            permits.release();
+        }
+    }
+
+
+    public boolean usesVirtualThreads() {
+        return virtual;
+    }
+
+
+    /** The most reads that have been in flight at the same time. */
+    public int maxReadsInFlight() {
+        return maxReading.get();
+    }
+
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,661 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/*
+ *   A compressed set of docIDs in the style of Roaring bitmaps. The docIDs
+ *   are split by their high 16 bits into containers, each holding the low
+ *   16 bits of its docIDs in whichever of three forms is smallest:
+ *
+ *     an array     the sorted values (2 bytes each), for sparse containers
+ *     a bitmap     65536 bits (8 kB), for dense ones
+ *     runs         the first value and length of each run of consecutive
+ *                  values (4 bytes each), for documents in long stretches
+ *
+ *   AND, OR and AND NOT work container by container: an array against
+ *   an array is merged value by value, anything else word by word on the
+ *   bitmaps, and the result takes the smallest form again.
+ *
+ *   The persistent index stores one with the postings of every term with
+ *   at least PostingsCodec.BITMAP_MIN_DF documents, so that intersections
+ *   with such terms need not read their positions. Serialized, a bitmap is
+ *
+ *     varint containers, then per container: key (2 bytes), type (1 byte),
+ *     and: varint n, n values (array); 1024 longs (bitmap); or varint n,
+ *     n pairs of first value and length-1 (runs)
+ */
+public class DocBitmap {
+
+    /** A container never holds more values than this as an array. */
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    /** Number of 64-bit words in a bitmap container. */
+    static final int WORDS = 1024;
+
+    static final byte ARRAY = 0;
+    static final byte BITMAP = 1;
+    static final byte RUNS = 2;
+
+    /** The high 16 bits of the docIDs of each container, in increasing order. */
+    private final int[] keys;
+    private final Container[] containers;
+    private final int size;
+
+
+    private DocBitmap( int[] keys, Container[] containers, int size ) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+
+    /**
+     *  The low 16 bits of the docIDs of one container.
+     */
+    static abstract class Container {
+        /** The number of values. */
+        abstract int cardinality();
+
+        abstract boolean contains( int value );
+
+        /** The smallest value at least <code>value</code>, or -1. */
+        abstract int next( int value );
+
+        /** The values as a bitmap. */
+        abstract long[] words();
+
+        abstract byte type();
+
+        /** The bytes written by write, without key and type. */
+        abstract int serializedSize();
+
+        abstract void write( ByteBuffer buf );
+    }
+
+
+    static class ArrayContainer extends Container {
+        final char[] values;
+        final int n;
+
+        ArrayContainer( char[] values, int n ) {
+            this.values = values;
+            this.n = n;
+        }
+
+        int cardinality() {
+            return n;
+        }
+
+        boolean contains( int value ) {
+            return Arrays.binarySearch( values, 0, n, (char) value ) >= 0;
+        }
+
+        int next( int value ) {
+            int i = Arrays.binarySearch( values, 0, n, (char) value );
+            if ( i < 0 ) {
+                i = -i - 1;
+            }
+            return i < n ? values[i] : -1;
+        }
+
+        long[] words() {
+            long[] words = new long[WORDS];
+            for ( int i = 0; i < n; i++ ) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return words;
+        }
+
+        byte type() {
+            return ARRAY;
+        }
+
+        int serializedSize() {
+            return varIntLength( n ) + 2*n;
+        }
+
+        void write( ByteBuffer buf ) {
+            PostingsCodec.putVarInt( buf, n );
+            for ( int i = 0; i < n; i++ ) {
+                buf.putChar( values[i] );
+            }
+        }
+    }
+
+
+    static class BitmapContainer extends Container {
+        final long[] words;
+        final int cardinality;
+
+        BitmapContainer( long[] words, int cardinality ) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains( int value ) {
+            return ( words[value >>> 6] & ( 1L << value )) != 0;
+        }
+
+        int next( int value ) {
+            int w = value >>> 6;
+            long word = words[w] & ( -1L << value );
+            while ( word == 0 ) {
+                if ( ++w == WORDS ) {
+                    return -1;
+                }
+                word = words[w];
+            }
+            return ( w << 6 ) + Long.numberOfTrailingZeros( word );
+        }
+
+        long[] words() {
+            return words;
+        }
+
+        byte type() {
+            return BITMAP;
+        }
+
+        int serializedSize() {
+            return 8*WORDS;
+        }
+
+        void write( ByteBuffer buf ) {
+            for ( long word : words ) {
+                buf.putLong( word );
+            }
+        }
+    }
+
+
+    static class RunContainer extends Container {
+        /** Run i holds the values starts[i] to starts[i]+lengths[i]-1. */
+        final char[] starts;
+        final int[] lengths;
+        final int runs;
+        final int cardinality;
+
+        RunContainer( char[] starts, int[] lengths, int runs ) {
+            this.starts = starts;
+            this.lengths = lengths;
+            this.runs = runs;
+            int c = 0;
+            for ( int i = 0; i < runs; i++ ) {
+                c += lengths[i];
+            }
+            cardinality = c;
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        /** The index of the last run starting at or before the value, or -1. */
+        private int run( int value ) {
+            int i = Arrays.binarySearch( starts, 0, runs, (char) value );
+            return i >= 0 ? i : -i - 2;
+        }
+
+        boolean contains( int value ) {
+            int i = run( value );
+            return i >= 0 && value < starts[i] + lengths[i];
+        }
+
+        int next( int value ) {
+            int i = run( value );
+            if ( i >= 0 && value < starts[i] + lengths[i] ) {
+                return value;
+            }
+            return i + 1 < runs ? starts[i + 1] : -1;
+        }
+
+        long[] words() {
+            long[] words = new long[WORDS];
+            for ( int i = 0; i < runs; i++ ) {
+                for ( int v = starts[i]; v < starts[i] + lengths[i]; v++ ) {
+                    words[v >>> 6] |= 1L << v;
+                }
+            }
+            return words;
+        }
+
+        byte type() {
+            return RUNS;
+        }
+
+        int serializedSize() {
+            return varIntLength( runs ) + 4*runs;
+        }
+
+        void write( ByteBuffer buf ) {
+            PostingsCodec.putVarInt( buf, runs );
+            for ( int i = 0; i < runs; i++ ) {
+                buf.putChar( starts[i] );
+                buf.putChar( (char) ( lengths[i] - 1 ));
+            }
+        }
+    }
+
+
+    // ==================================================================
+    //
+    //  Building
+
+
+    /**
+     *  Returns a bitmap of the first <code>n</code> docIDs of an array
+     *  sorted in increasing order.
+     */
+    public static DocBitmap of( int[] docIDs, int n ) {
+        List<Integer> keys = new ArrayList<Integer>();
+        List<Container> containers = new ArrayList<Container>();
+        int i = 0;
+        while ( i < n ) {
+            int key = docIDs[i] >>> 16;
+            int end = i;
+            while ( end < n && docIDs[end] >>> 16 == key ) {
+                end++;
+            }
+            char[] values = new char[end - i];
+            for ( int j = i; j < end; j++ ) {
+                values[j - i] = (char) docIDs[j];
+            }
+            keys.add( key );
+            containers.add( best( values, values.length ));
+            i = end;
+        }
+        return build( keys, containers );
+    }
+
+
+    /** Returns a bitmap of the documents of a postings list. */
+    public static DocBitmap of( PostingsList list ) {
+        int[] docIDs = new int[list.size()];
+        for ( int i = 0; i < docIDs.length; i++ ) {
+            docIDs[i] = list.docID( i );
+        }
+        return of( docIDs, docIDs.length );
+    }
+
+
+    /** Returns a bitmap of the documents a cursor has left, which it moves to the end. */
+    public static DocBitmap of( PostingsIterator it ) {
+        int[] docIDs = new int[Math.max( it.cost(), 16 )];
+        int n = 0;
+        for ( int docID = it.nextDoc(); docID != PostingsIterator.NO_MORE_DOCS; docID = it.nextDoc() ) {
+            if ( n == docIDs.length ) {
+                docIDs = Arrays.copyOf( docIDs, 2*n );
+            }
+            docIDs[n++] = docID;
+        }
+        return of( docIDs, n );
+    }
+
+
+    /** Returns a bitmap of the set bits. */
+    public static DocBitmap of( BitSet bits ) {
+        int[] docIDs = bits.stream().toArray();
+        return of( docIDs, docIDs.length );
+    }
+
+
+    private static DocBitmap build( List<Integer> keys, List<Container> containers ) {
+        int[] k = new int[keys.size()];
+        int size = 0;
+        for ( int i = 0; i < k.length; i++ ) {
+            k[i] = keys.get( i );
+            size += containers.get( i ).cardinality();
+        }
+        return new DocBitmap( k, containers.toArray( new Container[k.length] ), size );
+    }
+
+
+    /**
+     *  The smallest container for sorted values, or null if there are
+     *  none.
+     */
+    static Container best( char[] values, int n ) {
+        if ( n == 0 ) {
+            return null;
+        }
+        int runs = 1;
+        for ( int i = 1; i < n; i++ ) {
+            if ( values[i] != values[i - 1] + 1 ) {
+                runs++;
+            }
+        }
+        if ( 4*runs < Math.min( 2*n, 8*WORDS )) {
+            char[] starts = new char[runs];
+            int[] lengths = new int[runs];
+            int r = -1;
+            for ( int i = 0; i < n; i++ ) {
+                if ( i == 0 || values[i] != values[i - 1] + 1 ) {
+                    starts[++r] = values[i];
+                }
+                lengths[r]++;
+            }
+            return new RunContainer( starts, lengths, runs );
+        }
+        if ( n <= MAX_ARRAY_SIZE ) {
+            return new ArrayContainer( values, n );
+        }
+        return best( toWords( values, n ));
+    }
+
+
+    /** The smallest container for a bitmap, or null if it is empty. */
+    static Container best( long[] words ) {
+        int cardinality = 0;
+        int runs = 0;
+        long previous = 0;
+        for ( long word : words ) {
+            cardinality += Long.bitCount( word );
+            // A run starts at every set bit whose lower neighbour is clear
+            runs += Long.bitCount( word & ~(( word << 1 ) | ( previous >>> 63 )));
+            previous = word;
+        }
+        if ( cardinality == 0 ) {
+            return null;
+        }
+        if ( 4*runs < Math.min( 2*cardinality, 8*WORDS ) || cardinality <= MAX_ARRAY_SIZE ) {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for ( int w = 0; w < WORDS; w++ ) {
+                for ( long word = words[w]; word != 0; word &= word - 1 ) {
+                    values[n++] = (char) (( w << 6 ) + Long.numberOfTrailingZeros( word ));
+                }
+            }
+            return best( values, n );
+        }
+        return new BitmapContainer( words, cardinality );
+    }
+
+
+    private static long[] toWords( char[] values, int n ) {
+        return new ArrayContainer( values, n ).words();
+    }
+
+
+    // ==================================================================
+    //
+    //  Set operations
+
+
+    private interface ContainerOperation {
+        Container apply( Container a, Container b );
+    }
+
+
+    /** The documents in both bitmaps. */
+    public DocBitmap and( DocBitmap other ) {
+        return combine( other, false, false, DocBitmap::and );
+    }
+
+
+    /** The documents in either bitmap. */
+    public DocBitmap or( DocBitmap other ) {
+        return combine( other, true, true, DocBitmap::or );
+    }
+
+
+    /** The documents in this bitmap but not in the other. */
+    public DocBitmap andNot( DocBitmap other ) {
+        return combine( other, true, false, DocBitmap::andNot );
+    }
+
+
+    /**
+     *  Applies an operation to the containers with the same key, keeping
+     *  the containers of only one of the bitmaps if the operation would
+     *  keep them as they are (<code>keepThis</code>, <code>keepOther</code>).
+     */
+    private DocBitmap combine( DocBitmap other, boolean keepThis, boolean keepOther, ContainerOperation op ) {
+        List<Integer> k = new ArrayList<Integer>();
+        List<Container> c = new ArrayList<Container>();
+        int i = 0, j = 0;
+        while ( i < keys.length || j < other.keys.length ) {
+            int a = i < keys.length ? keys[i] : Integer.MAX_VALUE;
+            int b = j < other.keys.length ? other.keys[j] : Integer.MAX_VALUE;
+            Container result;
+            int key = Math.min( a, b );
+            if ( a == b ) {
+                result = op.apply( containers[i++], other.containers[j++] );
+            } else if ( a < b ) {
+                result = keepThis ? containers[i] : null;
+                i++;
+            } else {
+                result = keepOther ? other.containers[j] : null;
+                j++;
+            }
+            if ( result != null ) {
+                k.add( key );
+                c.add( result );
+            }
+        }
+        return build( k, c );
+    }
+
+
+    static Container and( Container a, Container b ) {
+        if ( a instanceof ArrayContainer || b instanceof ArrayContainer ) {
+            // Probe the other container with the values of the array
+            ArrayContainer array = (ArrayContainer) ( a instanceof ArrayContainer ? a : b );
+            Container other = array == a ? b : a;
+            char[] values = new char[array.n];
+            int n = 0;
+            for ( int i = 0; i < array.n; i++ ) {
+                if ( other.contains( array.values[i] )) {
+                    values[n++] = array.values[i];
+                }
+            }
+            return best( values, n );
+        }
+        long[] x = a.words();
+        long[] y = b.words();
+        long[] words = new long[WORDS];
+        for ( int w = 0; w < WORDS; w++ ) {
+            words[w] = x[w] & y[w];
+        }
+        return best( words );
+    }
+
+
+    static Container or( Container a, Container b ) {
+        if ( a instanceof ArrayContainer && b instanceof ArrayContainer ) {
+            ArrayContainer x = (ArrayContainer) a;
+            ArrayContainer y = (ArrayContainer) b;
+            char[] values = new char[x.n + y.n];
+            int n = 0, i = 0, j = 0;
+            while ( i < x.n || j < y.n ) {
+                if ( j == y.n || ( i < x.n && x.values[i] < y.values[j] )) {
+                    values[n++] = x.values[i++];
+                } else if ( i == x.n || y.values[j] < x.values[i] ) {
+                    values[n++] = y.values[j++];
+                } else {
+                    values[n++] = x.values[i++];
+                    j++;
+                }
+            }
+            return best( values, n );
+        }
+        long[] x = a.words();
+        long[] y = b.words();
+        long[] words = new long[WORDS];
+        for ( int w = 0; w < WORDS; w++ ) {
+            words[w] = x[w] | y[w];
+        }
+        return best( words );
+    }
+
+
+    static Container andNot( Container a, Container b ) {
+        if ( a instanceof ArrayContainer ) {
+            ArrayContainer array = (ArrayContainer) a;
+            char[] values = new char[array.n];
+            int n = 0;
+            for ( int i = 0; i < array.n; i++ ) {
+                if ( !b.contains( array.values[i] )) {
+                    values[n++] = array.values[i];
+                }
+            }
+            return best( values, n );
+        }
+        long[] x = a.words();
+        long[] y = b.words();
+        long[] words = new long[WORDS];
+        for ( int w = 0; w < WORDS; w++ ) {
+            words[w] = x[w] & ~y[w];
+        }
+        return best( words );
+    }
+
+
+    // ==================================================================
+    //
+    //  Access
+
+
+    /** The number of documents. */
+    public int size() {
+        return size;
+    }
+
+
+    public boolean contains( int docID ) {
+        int i = Arrays.binarySearch( keys, docID >>> 16 );
+        return i >= 0 && containers[i].contains( docID & 0xFFFF );
+    }
+
+
+    /**
+     *  Returns a cursor over the documents. It has no frequencies or
+     *  positions (freq() is 0), so it can only take part in intersections.
+     */
+    public PostingsIterator iterator() {
+        return new PostingsIterator() {
+            /** The container of the current document. */
+            int container = 0;
+            int docID = -1;
+
+            public int docID() {
+                return docID;
+            }
+
+            public int nextDoc() {
+                return advance( docID + 1 );
+            }
+
+            public int advance( int target ) {
+                if ( docID >= target ) {
+                    return docID;
+                }
+                while ( container < keys.length && keys[container] < target >>> 16 ) {
+                    container++;
+                }
+                while ( container < keys.length ) {
+                    int low = keys[container] == target >>> 16 ? target & 0xFFFF : 0;
+                    int value = containers[container].next( low );
+                    if ( value >= 0 ) {
+                        return docID = ( keys[container] << 16 ) | value;
+                    }
+                    container++;
+                }
+                return docID = NO_MORE_DOCS;
+            }
+
+            public int freq() {
+                return 0;
+            }
+
+            public int[] positions() {
+                return new int[0];
+            }
+
+            public int cost() {
+                return size;
+            }
+        };
+    }
+
+
+    /** The number of bytes write puts in a buffer. */
+    public int serializedSize() {
+        int bytes = varIntLength( keys.length );
+        for ( Container c : containers ) {
+            bytes += 3 + c.serializedSize();
+        }
+        return bytes;
+    }
+
+
+    /** Writes the bitmap to a buffer, which must have serializedSize() bytes left. */
+    public void write( ByteBuffer buf ) {
+        PostingsCodec.putVarInt( buf, keys.length );
+        for ( int i = 0; i < keys.length; i++ ) {
+            buf.putChar( (char) keys[i] );
+            buf.put( containers[i].type() );
+            containers[i].write( buf );
+        }
+    }
+
+
+    /** Reads a bitmap written by write. */
+    public static DocBitmap read( ByteBuffer buf ) {
+        int count = PostingsCodec.readVarInt( buf );
+        List<Integer> keys = new ArrayList<Integer>();
+        List<Container> containers = new ArrayList<Container>();
+        for ( int i = 0; i < count; i++ ) {
+            keys.add( (int) buf.getChar() );
+            byte type = buf.get();
+            if ( type == ARRAY ) {
+                int n = PostingsCodec.readVarInt( buf );
+                char[] values = new char[n];
+                for ( int j = 0; j < n; j++ ) {
+                    values[j] = buf.getChar();
+                }
+                containers.add( new ArrayContainer( values, n ));
+            } else if ( type == BITMAP ) {
+                long[] words = new long[WORDS];
+                int cardinality = 0;
+                for ( int w = 0; w < WORDS; w++ ) {
+                    words[w] = buf.getLong();
+                    cardinality += Long.bitCount( words[w] );
+                }
+                containers.add( new BitmapContainer( words, cardinality ));
+            } else {
+                int runs = PostingsCodec.readVarInt( buf );
+                char[] starts = new char[runs];
+                int[] lengths = new int[runs];
+                for ( int j = 0; j < runs; j++ ) {
+                    starts[j] = buf.getChar();
+                    lengths[j] = buf.getChar() + 1;
+                }
+                containers.add( new RunContainer( starts, lengths, runs ));
+            }
+        }
+        return build( keys, containers );
+    }
+
+
+    private static int varIntLength( int value ) {
+        int length = 1;
+        while (( value & ~0x7F ) != 0 ) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+}
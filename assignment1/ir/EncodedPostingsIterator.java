@@ -0,0 +1,200 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ *  A PostingsIterator that decodes a binary postings record (see
+ *  PostingsCodec) while it moves. Only the docID gap and the frequency of
+ *  each document are decoded on the way; the positions are decoded when
+ *  positions() is called and skipped otherwise. Records that carry skip
+ *  entries let advance() jump over whole intervals of documents.
+ */
+public class EncodedPostingsIterator implements PostingsIterator {
+
+    /** The record, positioned at the next unread byte of the payload. */
+    private final ByteBuffer buf;
+
+    /** The document frequency of the term. */
+    private final int df;
+
+    /** Number of documents read so far. */
+    private int read = 0;
+
+    private int docID = -1;
+    private int freq = 0;
+
+    /** True if the positions of the current document have been read from buf. */
+    private boolean positionsRead = true;
+
+    private int[] positions = new int[8];
+
+    /** The skip entries not read yet, or null if the record has none. */
+    private ByteBuffer skips = null;
+
+    /** Position of the first document in buf; skip offsets are relative to it. */
+    private int documentsStart;
+
+    /** The largest scores of the term, by number of words and by Euclidean length. */
+    private float[] maxScores = PostingsCodec.UNKNOWN_MAX_SCORES;
+
+    /** The bitmap of the documents, or null if the record has none. */
+    private ByteBuffer bitmap = null;
+
+    /** The skip entries left to read. */
+    private int skipsLeft = 0;
+
+    /** The last skip entry read: the document it points at, its offset and the docID before it. */
+    private int skipIndex = 0;
+    private int skipOffset = 0;
+    private int skipDocID = 0;
+
+
+    /**
+     *  Creates an iterator over a record whose term has already been read
+     *  (see PostingsCodec.decodeTerm).
+     */
+    public EncodedPostingsIterator( ByteBuffer buf, byte format ) {
+        this.buf = buf;
+        df = PostingsCodec.readVarInt( buf );
+        PostingsCodec.readVarInt( buf );    // payload length
+        if ( format >= PostingsCodec.FORMAT_MAX_SCORES ) {
+            maxScores = new float[] { buf.getFloat(), buf.getFloat() };
+        }
+        if ( format >= PostingsCodec.FORMAT_BITMAPS ) {
+            int bitmapLength = PostingsCodec.readVarInt( buf );
+            if ( bitmapLength > 0 ) {
+                bitmap = buf.duplicate();
+                bitmap.limit( buf.position() + bitmapLength );
+                buf.position( buf.position() + bitmapLength );
+            }
+        }
+        if ( format >= PostingsCodec.FORMAT_SKIPS ) {
+            int skipLength = PostingsCodec.readVarInt( buf );
+            if ( skipLength > 0 ) {
+                skips = buf.duplicate();
+                skips.limit( buf.position() + skipLength );
+                skipsLeft = ( df - 1 ) / PostingsCodec.SKIP_INTERVAL;
+                buf.position( buf.position() + skipLength );
+            }
+        }
+        documentsStart = buf.position();
+    }
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        if ( read == df ) {
+            return docID = NO_MORE_DOCS;
+        }
+        if ( !positionsRead ) {
+            skipPositions();
+        }
+        docID = ( read == 0 ? 0 : docID ) + PostingsCodec.readVarInt( buf );
+        freq = PostingsCodec.readVarInt( buf );
+        positionsRead = false;
+        read++;
+        return docID;
+    }
+
+    public int advance( int target ) {
+        if ( docID >= target ) {
+            return docID;
+        }
+        if ( skipsLeft > 0 ) {
+            skipTo( target );
+        }
+        while ( docID < target ) {
+            nextDoc();
+        }
+        return docID;
+    }
+
+
+    /**
+     *  Reads the skip entries whose preceding docID is below the target and
+     *  moves to the last of them, if it is ahead of the current document.
+     *  The documents in between are never read.
+     */
+    private void skipTo( int target ) {
+        int index = skipIndex;
+        int offset = skipOffset;
+        int before = skipDocID;
+        // Look at the next entry before consuming it
+        while ( skipsLeft > 0 ) {
+            int mark = skips.position();
+            int nextBefore = before + PostingsCodec.readVarInt( skips );
+            int nextOffset = offset + PostingsCodec.readVarInt( skips );
+            if ( nextBefore >= target ) {
+                skips.position( mark );
+                break;
+            }
+            index += PostingsCodec.SKIP_INTERVAL;
+            offset = nextOffset;
+            before = nextBefore;
+            skipsLeft--;
+        }
+        skipIndex = index;
+        skipOffset = offset;
+        skipDocID = before;
+        if ( index > read ) {
+            buf.position( documentsStart + offset );
+            docID = before;
+            read = index;
+            freq = 0;
+            positionsRead = true;
+        }
+    }
+
+    public int freq() {
+        return freq;
+    }
+
+    public int[] positions() {
+        if ( !positionsRead ) {
+            if ( freq > positions.length ) {
+                positions = new int[Math.max( 2*positions.length, freq )];
+            }
+            int position = 0;
+            for ( int i = 0; i < freq; i++ ) {
+                position += PostingsCodec.readVarInt( buf );
+                positions[i] = position;
+            }
+            positionsRead = true;
+        }
+        return positions;
+    }
+
+    public int cost() {
+        return df;
+    }
+
+    public float maxScore( NormalizationType normType ) {
+        return maxScores[normType == NormalizationType.EUCLIDEAN ? 1 : 0];
+    }
+
+    public DocBitmap docBitmap() {
+        return bitmap == null ? null : DocBitmap.read( bitmap.duplicate() );
+    }
+
+    /**
+     *  Moves past the position varints of the current document without
+     *  decoding them.
+     */
+    private void skipPositions() {
+        for ( int i = 0; i < freq; i++ ) {
+            while (( buf.get() & 0x80 ) != 0 ) {
+            }
+        }
+        positionsRead = true;
+    }
+}
@@ -59,6 +59,30 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** When the index is only read (-ni), serve lookups from memory-mapped files. */
+    boolean memory_mapped = false;
+
+    /** Rewrite an index written by an older version in the current format. */
+    boolean upgrade_index = false;
+
+    /** Build the persistent index with a sorted block dictionary instead of a hash table. */
+    boolean sorted_dictionary = false;
+
+    /** Index only the documents that changed since the index was built or last updated. */
+    boolean update_index = false;
+
+    /** Merge index blocks of similar size in the background while indexing. */
+    boolean tiered_merge = false;
+
+    /** Number of threads tokenizing files while indexing. */
+    int indexing_threads = 1;
+
+    /** Number of threads reading files while indexing. */
+    int reading_threads = 1;
+
+    /** Number of file reads kept in flight while indexing (0: one per reading thread). */
+    int concurrent_reads = 0;
+
 
     /* ----------------------------------------------- */
 
@@ -69,7 +93,20 @@ public class Engine {
      */
     public Engine( String[] args ) {
         decodeArgs( args );
+        if ( sorted_dictionary ) {
+            if ( index instanceof PersistentScalableHashedIndex ) {
+                ((PersistentScalableHashedIndex) index).sortedDictionary = true;
+            } else if ( index instanceof PersistentHashedIndex ) {
+                ((PersistentHashedIndex) index).sortedDictionary = true;
+            }
+        }
+        if ( tiered_merge && index instanceof PersistentScalableHashedIndex ) {
+            ((PersistentScalableHashedIndex) index).tieredMerge = true;
+        }
         indexer = new Indexer( index, kgIndex, patterns_file );
+        indexer.threads = indexing_threads;
+        indexer.readers = reading_threads;
+        indexer.concurrentReads = concurrent_reads;
         searcher = new Searcher( index, kgIndex );
         gui = new SearchGUI( this );
         gui.init();
@@ -83,15 +120,43 @@ public class Engine {
             synchronized ( indexLock ) {
                 gui.displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
+                if ( index instanceof PersistentScalableHashedIndex ) {
+                    PersistentScalableHashedIndex persistent = (PersistentScalableHashedIndex) index;
+                    if ( update_index && persistent.beginUpdate() ) {
+                        // New and changed documents get docIDs after those of the index
+                        indexer.reserveDocIDs( persistent.files.nextDocID );
+                    } else {
+                        // Continue an interrupted run of the same directories, if there was one
+                        indexer.resumeDocID = persistent.resume( dirNames );
+                        indexer.resumeDocName = persistent.flushedDocName;
+                        if ( indexer.resumeDocID > 0 && kgIndex != null ) {
+                            for ( String term : persistent.segmentTerms() ) {
+                                kgIndex.insert( term );
+                            }
+                        }
+                    }
+                    indexer.files = persistent.files;
+                }
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
-                    indexer.processFiles( dokDir, is_indexing );
+                    if ( indexing_threads > 1 || reading_threads > 1 || concurrent_reads > 0 ) {
+                        indexer.processFilesParallel( dokDir );
+                    } else {
+                        indexer.processFiles( dokDir, is_indexing );
+                    }
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 index.cleanup();
             }
         } else {
+            if ( upgrade_index && index instanceof PersistentScalableHashedIndex ) {
+                gui.displayInfoText( "Upgrading index, please wait..." );
+                ((PersistentScalableHashedIndex) index).upgradeIndex();
+            }
+            if ( memory_mapped && index instanceof PersistentScalableHashedIndex ) {
+                ((PersistentScalableHashedIndex) index).mapIndexFiles();
+            }
             gui.displayInfoText( "Index is loaded from disk" );
         }
     }
@@ -128,6 +193,36 @@ public class Engine {
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-mm".equals( args[i] )) {
+                i++;
+                memory_mapped = true;
+            } else if ( "-upgrade".equals( args[i] )) {
+                i++;
+                upgrade_index = true;
+            } else if ( "-sd".equals( args[i] )) {
+                i++;
+                sorted_dictionary = true;
+            } else if ( "-ui".equals( args[i] )) {
+                i++;
+                update_index = true;
+            } else if ( "-tm".equals( args[i] )) {
+                i++;
+                tiered_merge = true;
+            } else if ( "-t".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Math.max( 1, Integer.parseInt( args[i++] ));
+                }
+            } else if ( "-rt".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    reading_threads = Math.max( 1, Integer.parseInt( args[i++] ));
+                }
+            } else if ( "-io".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    concurrent_reads = Math.max( 0, Integer.parseInt( args[i++] ));
+                }
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
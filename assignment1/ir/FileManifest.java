@@ -0,0 +1,290 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+
+/*
+ *   Records what a persistent index holds, so that it can be brought up
+ *   to date by indexing only the documents that changed: the size,
+ *   modification time and content hash of every document; the segments
+ *   added by updates; and the documents deleted since the index was built.
+ *   A file is known by its path, and a document in a tar, zip or JSONL
+ *   file by the path of the container and its name there ("a.tar!doc").
+ *
+ *   An update compares each document with its stamp. A file whose size
+ *   and modification time are unchanged is taken to be unchanged without
+ *   being read; one whose time changed is read and compared by hash. New
+ *   and changed documents get new docIDs and go to a new segment, and the
+ *   old docIDs of changed and removed documents are marked as deleted.
+ *
+ *   The manifest is the commit point of an update: it is written to a
+ *   temporary file that replaces the old one once the new segment is on
+ *   disk. It is one line per item:
+ *
+ *     nextDocID;<docID>                 the first docID not yet used
+ *     nextBlock;<number>                the number of the next block file
+ *     segment;<dictionary>;<data>;<docInfo>   a segment added by an update
+ *     deleted;<docID>                   a deleted document
+ *     file;<docID>;<size>;<mtime>;<hash>;<key>    a document in the index
+ *
+ *   Stamps are added by the indexing threads, so the methods that change
+ *   them are synchronized.
+ */
+public class FileManifest {
+
+    /** What is known about one document. A hash of 0 is unknown. */
+    public static class Stamp {
+        final int docID;
+        final long size;
+        final long mtime;
+        final long hash;
+
+        Stamp( int docID, long size, long mtime, long hash ) {
+            this.docID = docID;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+
+    /** The first docID not yet used. */
+    int nextDocID = 0;
+
+    /** The number of the next block file written by an update. */
+    int nextBlock = 1;
+
+    /** The dictionary, data and docInfo files of the segments added by updates, oldest first. */
+    final List<String[]> segments = new ArrayList<String[]>();
+
+    /** The deleted docIDs. */
+    final BitSet deleted = new BitSet();
+
+    /** The documents in the index, by key. */
+    private Map<String,Stamp> stamps = new LinkedHashMap<String,Stamp>();
+
+    /** During an update, the documents in the index before it. */
+    private Map<String,Stamp> previous = null;
+
+
+    /**
+     *  Reads a manifest, or returns an empty one if there is none.
+     */
+    public static FileManifest load( File file ) throws IOException {
+        FileManifest manifest = new FileManifest();
+        if ( !file.exists() ) {
+            return manifest;
+        }
+        try ( BufferedReader br = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 )) {
+            String line;
+            while (( line = br.readLine() ) != null ) {
+                String[] data = line.split( ";", 6 );
+                if ( data[0].equals( "nextDocID" )) {
+                    manifest.nextDocID = Integer.parseInt( data[1] );
+                } else if ( data[0].equals( "nextBlock" )) {
+                    manifest.nextBlock = Integer.parseInt( data[1] );
+                } else if ( data[0].equals( "segment" )) {
+                    manifest.segments.add( new String[] { data[1], data[2], data[3] } );
+                } else if ( data[0].equals( "deleted" )) {
+                    manifest.deleted.set( Integer.parseInt( data[1] ));
+                } else if ( data[0].equals( "file" )) {
+                    manifest.stamps.put( data[5], new Stamp( Integer.parseInt( data[1] ), Long.parseLong( data[2] ),
+                                                             Long.parseLong( data[3] ), Long.parseLong( data[4] )));
+                }
+            }
+        } catch ( RuntimeException e ) {
+            throw new IOException( "Bad manifest " + file + ": " + e );
+        }
+        return manifest;
+    }
+
+
+    /**
+     *  Writes the manifest, replacing <code>file</code> only when it is
+     *  complete.
+     */
+    public synchronized void save( File file ) throws IOException {
+        File tmp = new File( file.getPath() + ".tmp" );
+        try ( FileOutputStream fout = new FileOutputStream( tmp )) {
+            Writer writer = new BufferedWriter( new OutputStreamWriter( fout, StandardCharsets.UTF_8 ));
+            writer.write( "nextDocID;" + nextDocID + "\n" );
+            writer.write( "nextBlock;" + nextBlock + "\n" );
+            for ( String[] segment : segments ) {
+                writer.write( "segment;" + segment[0] + ";" + segment[1] + ";" + segment[2] + "\n" );
+            }
+            for ( int docID = deleted.nextSetBit( 0 ); docID >= 0; docID = deleted.nextSetBit( docID + 1 )) {
+                writer.write( "deleted;" + docID + "\n" );
+            }
+            for ( Map.Entry<String,Stamp> e : stamps.entrySet() ) {
+                Stamp s = e.getValue();
+                writer.write( "file;" + s.docID + ";" + s.size + ";" + s.mtime + ";" + s.hash + ";" + e.getKey() + "\n" );
+            }
+            writer.flush();
+            fout.getFD().sync();
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Starts a full build: the index will hold only the documents stamped
+     *  from now on.
+     */
+    public synchronized void clear() {
+        nextDocID = 0;
+        segments.clear();
+        deleted.clear();
+        stamps = new LinkedHashMap<String,Stamp>();
+        previous = null;
+    }
+
+
+    /**
+     *  Starts an update: the documents are compared with the ones in the
+     *  index, and only those stamped or kept from now on stay in it.
+     */
+    public synchronized void beginUpdate() {
+        previous = stamps;
+        stamps = new LinkedHashMap<String,Stamp>();
+    }
+
+
+    /**
+     *  Ends an update: the documents of the index that were not kept (they
+     *  changed or are gone) are deleted.
+     *
+     *  @return The number of documents deleted.
+     */
+    public synchronized int endUpdate() {
+        int count = 0;
+        for ( Map.Entry<String,Stamp> e : previous.entrySet() ) {
+            Stamp now = stamps.get( e.getKey() );
+            if ( now == null || now.docID != e.getValue().docID ) {
+                deleted.set( e.getValue().docID );
+                count++;
+            }
+        }
+        previous = null;
+        return count;
+    }
+
+
+    /** True during an update. */
+    public synchronized boolean updating() {
+        return previous != null;
+    }
+
+
+    /**
+     *  During an update, keeps file <code>f</code> as it is in the index if
+     *  it has not changed, and returns true. A file whose size or time
+     *  differs from its stamp is read and compared by hash.
+     */
+    public boolean keep( File f ) throws IOException {
+        Stamp old;
+        synchronized ( this ) {
+            old = previous == null ? null : previous.get( f.getPath() );
+        }
+        if ( old == null ) {
+            return false;
+        }
+        long size = f.length();
+        long mtime = f.lastModified();
+        if ( old.size == size && old.mtime == mtime ) {
+            put( f.getPath(), old );
+            return true;
+        }
+        if ( old.size == size && old.hash != 0 && old.hash == hash( ByteBuffer.wrap( Files.readAllBytes( f.toPath() )))) {
+            put( f.getPath(), new Stamp( old.docID, size, mtime, old.hash ));
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     *  During an update, keeps the document with key <code>key</code> (an
+     *  entry of a container, which has no time of its own) if its bytes
+     *  have not changed, and returns true.
+     */
+    public boolean keep( String key, ByteBuffer content ) {
+        Stamp old;
+        synchronized ( this ) {
+            old = previous == null ? null : previous.get( key );
+        }
+        if ( old != null && old.size == content.remaining() && old.hash != 0 && old.hash == hash( content )) {
+            put( key, old );
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     *  Records that the document with key <code>key</code>, with the bytes
+     *  from the position to the limit of <code>content</code> (which are
+     *  not changed), was indexed as <code>docID</code>.
+     */
+    public void stamp( String key, int docID, long mtime, ByteBuffer content ) {
+        put( key, new Stamp( docID, content.remaining(), mtime, hash( content )));
+    }
+
+
+    /**
+     *  Records that file <code>f</code> was indexed as <code>docID</code>
+     *  without knowing its hash (when it is skipped by a resumed build). A
+     *  later update reads it if its time has changed.
+     */
+    public void stamp( File f, int docID ) {
+        put( f.getPath(), new Stamp( docID, f.length(), f.lastModified(), 0 ));
+    }
+
+
+    private synchronized void put( String key, Stamp stamp ) {
+        stamps.put( key, stamp );
+    }
+
+
+    /** The key of document <code>name</code> of a tar, zip or JSONL file. */
+    public static String entryKey( File container, String name ) {
+        return container.getPath() + "!" + name;
+    }
+
+
+    /** The number of documents in the index. */
+    public synchronized int size() {
+        return stamps.size();
+    }
+
+
+    /**
+     *  A 64-bit hash of the bytes from the position to the limit of
+     *  <code>content</code>: two different 32-bit CRCs, both computed by
+     *  the JVM with processor instructions where it can.
+     */
+    static long hash( ByteBuffer content ) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update( content.duplicate() );
+        CRC32 crc32 = new CRC32();
+        crc32.update( content.duplicate() );
+        long hash = ( crc32c.getValue() << 32 ) | crc32.getValue();
+        // 0 means unknown
+        return hash == 0 ? 1 : hash;
+    }
+}
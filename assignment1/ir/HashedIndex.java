@@ -8,6 +8,7 @@
 package ir;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Implements an inverted index as a Hashtable from words to PostingsLists.
@@ -23,19 +24,31 @@ public class HashedIndex implements Index {
     public void insert(String token, int docID, int offset) {
         // System.out.println("token: ") ;
         // System.out.println(token);
-        // Create a new PostingsEntry
-        PostingsEntry entry = new PostingsEntry(docID, offset);
         // Check if the token already exists in the index
-        if (index.containsKey(token)) {
-            // If the token exists, get its postings list and add the new entry
-            PostingsList postingsList = index.get(token);
-            postingsList.insert(entry);
-        } else {
-            // If the token doesn't exist, create a new postings list and add the entry
-            PostingsList postingsList = new PostingsList();
-            postingsList.insert(entry);
+        PostingsList postingsList = index.get(token);
+        if (postingsList == null) {
+            // If the token doesn't exist, create a new postings list
+            postingsList = new PostingsList();
             index.put(token, postingsList);
         }
+        // Documents are indexed in docID order, so the occurrence belongs
+        // to the last document of the list or comes after it
+        postingsList.addPosting(docID, offset);
+    }
+
+    /**
+     * Appends the postings lists of a worker's buffer to the ones in the
+     * hashtable; lists of new terms are taken over as they are.
+     */
+    public void insert(PostingsBuffer buffer) {
+        for (Map.Entry<String, PostingsList> e : buffer.postings.entrySet()) {
+            PostingsList postingsList = index.get(e.getKey());
+            if (postingsList == null) {
+                index.put(e.getKey(), e.getValue());
+            } else {
+                postingsList.addAll(e.getValue());
+            }
+        }
     }
 
     /**
@@ -47,8 +60,18 @@ public class HashedIndex implements Index {
     }
 
     /**
-     * No need for cleanup in a HashedIndex.
+     * Returns a cursor over the postings for a specific term, or null
+     * if the term is not in the index.
+     */
+    public PostingsIterator getPostingsIterator(String token) {
+        PostingsList list = index.get(token);
+        return list == null ? null : new ListPostingsIterator(list);
+    }
+
+    /**
+     * Computes the Euclidean lengths of the documents once all are indexed.
      */
     public void cleanup() {
+        Index.computeEuclideanLengths(index);
     }
 }
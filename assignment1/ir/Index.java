@@ -9,6 +9,7 @@ package ir;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -22,12 +23,60 @@ public interface Index {
     /** Mapping from document identifier to document length. */
     public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
 
+    /**
+     *  Mapping from document identifier to the Euclidean length of the
+     *  document's term frequency vector, for indexes that record it.
+     */
+    public HashMap<Integer,Double> docEuclideanLengths = new HashMap<Integer,Double>();
+
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
+    /**
+     *  Inserts the postings of a buffer filled by an indexing worker. All
+     *  docIDs of the buffer come after the ones inserted so far.
+     */
+    public default void insert( PostingsBuffer buffer ) {
+        for ( Map.Entry<String,PostingsList> e : buffer.postings.entrySet() ) {
+            PostingsList list = e.getValue();
+            for ( int i=0; i<list.size(); i++ ) {
+                for ( int j=0; j<list.freq( i ); j++ ) {
+                    insert( e.getKey(), list.docID( i ), list.position( i, j ));
+                }
+            }
+        }
+    }
+
+    /**
+     *  Sets the Euclidean lengths of the documents from the postings of an
+     *  index held in memory, which hold all terms of every document.
+     */
+    public static void computeEuclideanLengths( Map<String,PostingsList> index ) {
+        int last = -1;
+        for ( Integer docID : docLengths.keySet() ) {
+            last = Math.max( last, docID );
+        }
+        double[] sumSquares = new double[last + 1];
+        for ( PostingsList list : index.values() ) {
+            for ( int i=0; i<list.size(); i++ ) {
+                int docID = list.docID( i );
+                if ( docID < sumSquares.length ) {
+                    sumSquares[docID] += (double) list.freq( i ) * list.freq( i );
+                }
+            }
+        }
+        docEuclideanLengths.clear();
+        for ( Integer docID : docLengths.keySet() ) {
+            docEuclideanLengths.put( docID, Math.sqrt( sumSquares[docID] ));
+        }
+    }
+
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /** Returns a cursor over the postings for a given term, or null if the term is not indexed. */
+    public PostingsIterator getPostingsIterator( String token );
+
     /** This method is called on exit. */
     public void cleanup();
 
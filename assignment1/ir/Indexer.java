@@ -9,11 +9,14 @@ package ir;
 
 import java.io.*;
 import java.util.*;
-import java.nio.charset.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 
 /**
- *   Processes a directory structure and indexes all PDF and text files.
+ *   Processes a directory structure and indexes all PDF and text files,
+ *   and the documents in the tar, zip and JSONL files of the structure.
  */
 public class Indexer {
 
@@ -29,6 +32,121 @@ public class Indexer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** Number of threads tokenizing files in processFilesParallel. */
+    int threads = 1;
+
+    /** Number of threads reading files in processFilesParallel. */
+    int readers = 1;
+
+    /** Number of file reads in flight in processFilesParallel, or 0 to read one file at a time per thread. */
+    int concurrentReads = 0;
+
+    /**
+     *  Documents with smaller docIDs are already in the index, written by
+     *  an interrupted run that is being resumed, and are skipped. The last
+     *  of them should be named <code>resumeDocName</code>.
+     */
+    int resumeDocID = 0;
+    String resumeDocName = null;
+
+    /**
+     *  The stamps of the documents of the index, or null. During an update,
+     *  documents that have not changed since they were stamped are not
+     *  indexed again.
+     */
+    FileManifest files = null;
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Files of at least this many bytes are memory-mapped instead of read. */
+    static final int MAP_THRESHOLD = 1 << 20;
+
+    /** The tokenizer of each indexing thread, reused for all its documents. */
+    private final ThreadLocal<DocumentTokenizer> documentTokenizers =
+        ThreadLocal.withInitial( () -> new DocumentTokenizer() );
+
+
+    /**
+     *  Tokenizes documents and inserts their tokens, without creating
+     *  objects per token: the Tokenizer passes each token as a range of
+     *  its buffer, and the TermTable gives the String of the term, which
+     *  is only created the first time the term is seen.
+     *
+     *  Files are read into a direct buffer that is reused for all
+     *  documents (and grown when a file does not fit), or mapped if they
+     *  are large, and the tokenizer reads the bytes from there.
+     */
+    private class DocumentTokenizer implements Tokenizer.TokenHandler {
+        final Utf8Tokenizer tokenizer = new Utf8Tokenizer( true, false, true, patterns_file );
+        final TermTable terms = new TermTable();
+
+        /** The contents of the file being tokenized. */
+        ByteBuffer contents = ByteBuffer.allocateDirect( 1 << 16 );
+
+        /** Reads the documents of tar, zip and JSONL files. */
+        final ArchiveReader archiveReader = new ArchiveReader();
+
+        /** The buffer the tokens go to, or null to insert them into the index. */
+        PostingsBuffer buffer;
+        int docID;
+        int offset;
+
+        /**
+         *  Tokenizes file <code>f</code> and returns its number of tokens.
+         */
+        int tokenize( File f, int docID, PostingsBuffer buffer ) throws IOException {
+            // The time the file had when it was read, or earlier
+            long mtime = f.lastModified();
+            try ( FileChannel channel = FileChannel.open( f.toPath(), StandardOpenOption.READ )) {
+                long size = channel.size();
+                ByteBuffer text;
+                if ( size >= MAP_THRESHOLD ) {
+                    text = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+                } else {
+                    if ( contents.capacity() < size ) {
+                        contents = ByteBuffer.allocateDirect( Integer.highestOneBit( (int) size ) << 1 );
+                    }
+                    contents.clear().limit( (int) size );
+                    while ( contents.hasRemaining() && channel.read( contents ) >= 0 ) {
+                    }
+                    contents.flip();
+                    text = contents;
+                }
+                stamp( f.getPath(), docID, mtime, text );
+                return tokenize( text, docID, buffer );
+            }
+        }
+
+        /**
+         *  Tokenizes a document from its UTF-8 bytes and returns its number
+         *  of tokens.
+         */
+        int tokenize( ByteBuffer text, int docID, PostingsBuffer buffer ) throws IOException {
+            tokenizer.reset( text );
+            return tokenize( docID, buffer );
+        }
+
+        private int tokenize( int docID, PostingsBuffer buffer ) throws IOException {
+            this.buffer = buffer;
+            this.docID = docID;
+            offset = 0;
+            tokenizer.tokenize( this );
+            this.buffer = null;
+            return offset;
+        }
+
+        public void token( char[] chars, int start, int length ) {
+            String token = terms.intern( chars, start, length );
+            if ( buffer != null ) {
+                buffer.insert( token, docID, offset++ );
+            } else {
+                insertIntoIndex( docID, token, offset++ );
+            }
+        }
+    }
+
 
     /* ----------------------------------------------- */
 
@@ -64,21 +182,23 @@ public class Indexer {
                             processFiles( new File( f, fs[i] ), is_indexing );
                         }
                     }
+                } else if ( ArchiveReader.isArchive( f )) {
+                    processArchive( f );
                 } else {
+                    if ( unchanged( f )) {
+                        return;
+                    }
                     // First register the document and get a docID
                     int docID = generateDocID();
+                    if ( skip( docID, f.getPath() )) {
+                        stamp( f, docID );
+                        return;
+                    }
                     if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
                     try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
-                        }
+                        int offset = documentTokenizers.get().tokenize( f, docID, null );
                         index.docNames.put( docID, f.getPath() );
                         index.docLengths.put( docID, offset );
-                        reader.close();
                     } catch ( IOException e ) {
                         System.err.println( "Warning: IOException during indexing." );
                     }
@@ -88,6 +208,149 @@ public class Indexer {
     }
 
 
+    /**
+     *  Tokenizes and indexes the documents of a tar, zip or JSONL file,
+     *  which are named by their names in the file.
+     */
+    private void processArchive( File f ) {
+        DocumentTokenizer tokenizer = documentTokenizers.get();
+        try {
+            tokenizer.archiveReader.read( f, ( name, content, length ) -> {
+                String key = FileManifest.entryKey( f, name );
+                ByteBuffer text = ByteBuffer.wrap( content, 0, length );
+                if ( unchanged( key, text )) {
+                    return;
+                }
+                int docID = generateDocID();
+                stamp( key, docID, 0, text );
+                if ( skip( docID, name )) {
+                    return;
+                }
+                if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+                int offset = tokenizer.tokenize( text, docID, null );
+                Index.docNames.put( docID, name );
+                Index.docLengths.put( docID, offset );
+            });
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing of " + f + ": " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Indexes the files under <code>f</code> like processFiles, but with
+     *  an IndexingPipeline: <code>readers</code> threads read the files
+     *  while <code>threads</code> threads tokenize them (with up to
+     *  <code>concurrentReads</code> reads in flight, if set). The files get the
+     *  docIDs processFiles would give them and the index is the same.
+     */
+    public void processFilesParallel( File f ) {
+        new IndexingPipeline( this, readers, threads, concurrentReads ).run( f );
+    }
+
+
+    /**
+     *  Returns true if the document was indexed before the run was resumed.
+     *  Warns if the last such document is not the one the index has, in
+     *  which case the files have changed since.
+     */
+    boolean skip( int docID, String name ) {
+        if ( docID >= resumeDocID ) {
+            return false;
+        }
+        if ( docID == resumeDocID - 1 && resumeDocName != null && !resumeDocName.equals( name )) {
+            System.err.println( "Warning: resuming after document " + name + ", but the index ends with " + resumeDocName );
+        }
+        return true;
+    }
+
+
+    /**
+     *  Returns true if file <code>f</code> is in the index being updated
+     *  and has not changed since, in which case it keeps its docID.
+     */
+    boolean unchanged( File f ) {
+        if ( files == null || !files.updating() ) {
+            return false;
+        }
+        try {
+            return files.keep( f );
+        } catch ( IOException e ) {
+            return false;
+        }
+    }
+
+
+    /**
+     *  Returns true if the document of a container with key <code>key</code>
+     *  is in the index being updated and its bytes have not changed.
+     */
+    boolean unchanged( String key, ByteBuffer content ) {
+        return files != null && files.updating() && files.keep( key, content );
+    }
+
+
+    /**
+     *  Records the size, time and hash of a document indexed as
+     *  <code>docID</code>, if the index keeps stamps.
+     */
+    void stamp( String key, int docID, long mtime, ByteBuffer content ) {
+        if ( files != null ) {
+            files.stamp( key, docID, mtime, content );
+        }
+    }
+
+
+    /**
+     *  Records a file skipped by a resumed run, without reading it.
+     */
+    void stamp( File f, int docID ) {
+        if ( files != null ) {
+            files.stamp( f, docID );
+        }
+    }
+
+
+    /**
+     *  Reserves <code>n</code> consecutive docIDs and returns the first.
+     */
+    int reserveDocIDs( int n ) {
+        int first = lastDocID;
+        lastDocID += n;
+        return first;
+    }
+
+
+    /**
+     *  Tokenizes the bytes of document <code>name</code> into a buffer.
+     *  Runs in a worker thread.
+     */
+    void tokenize( byte[] content, int docID, String name, PostingsBuffer buffer ) {
+        if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+        try {
+            int offset = documentTokenizers.get().tokenize( ByteBuffer.wrap( content ), docID, buffer );
+            buffer.addDocument( docID, name, offset );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing." );
+        }
+    }
+
+
+    /**
+     *  Inserts a worker's buffer into the index.
+     */
+    void insertBuffer( PostingsBuffer buffer ) {
+        index.insert( buffer );
+        Index.docNames.putAll( buffer.docNames );
+        Index.docLengths.putAll( buffer.docLengths );
+        if ( kgIndex != null ) {
+            for ( String token : buffer.postings.keySet() ) {
+                kgIndex.insert( token );
+            }
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
 
@@ -0,0 +1,445 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ *   Indexes a directory structure in four stages connected by bounded
+ *   queues:
+ *
+ *     discover  walks the directories and groups the files into batches
+ *               of consecutive docIDs (one thread, so that the docIDs are
+ *               the ones processFiles gives), reading the documents of
+ *               tar, zip and JSONL files on the way, and leaving out
+ *               the documents an update finds unchanged;
+ *     read      reads the bytes of the files of a batch;
+ *     tokenize  tokenizes a batch into a PostingsBuffer;
+ *     insert    inserts the buffers into the index in docID order (the
+ *               calling thread, since the index is not thread-safe).
+ *
+ *   The read and tokenize stages have as many threads as asked for, so
+ *   reads of some batches overlap the tokenization of others. A stage
+ *   that gets ahead blocks on the full queue of the next one; the number
+ *   of batches anywhere in the pipeline is bounded as well, so a slow
+ *   batch cannot make the insert stage hold many finished ones.
+ *
+ *   Each stage counts its batches, files and bytes, the time its threads
+ *   work and the time they wait for the next stage, and samples the depth
+ *   of its input queue.
+ *
+ *   The read stage can hand the files of a batch to a ConcurrentFileReader,
+ *   which keeps many reads in flight; this is for cold caches and network
+ *   disks, where a read thread mostly waits. The time from the start of
+ *   the JVM to the end of indexing is printed with the counters (for a
+ *   cold-cache figure, drop the page cache before starting the engine).
+ */
+public class IndexingPipeline {
+
+    /** Number of consecutive files (and docIDs) that go through the stages together. */
+    static final int BATCH_SIZE = 256;
+
+    /** Number of batches each queue can hold. */
+    static final int QUEUE_CAPACITY = 4;
+
+
+    /**
+     *  A batch of consecutive documents on its way through the stages.
+     *  A document is a file, or an entry of a tar, zip or JSONL file,
+     *  which the discover stage reads as it walks through the container.
+     */
+    static class Batch {
+        final int firstDocID;
+
+        /** The files of the documents, null for those in containers. */
+        final List<File> files;
+
+        /** The names of the documents. */
+        final List<String> names;
+
+        /** The bytes of the documents, or null for files that could not be read. */
+        byte[][] contents;
+
+        /** The modification times of the files, taken before they were read. */
+        final long[] mtimes;
+
+        PostingsBuffer buffer;
+
+        Batch( int firstDocID, List<File> files, List<String> names, byte[][] contents ) {
+            this.firstDocID = firstDocID;
+            this.files = files;
+            this.names = names;
+            this.contents = contents;
+            mtimes = new long[names.size()];
+        }
+    }
+
+    /** Put in a queue after the last batch. */
+    static final Batch END = new Batch( -1, Collections.<File>emptyList(), Collections.<String>emptyList(), null );
+
+
+    /** The documents of the batch being made by the discover stage. */
+    private final ArrayList<File> files = new ArrayList<File>( BATCH_SIZE );
+    private final ArrayList<String> names = new ArrayList<String>( BATCH_SIZE );
+    private final ArrayList<byte[]> contents = new ArrayList<byte[]>( BATCH_SIZE );
+
+    /** Reads the containers for the discover stage. */
+    private final ArchiveReader archiveReader = new ArchiveReader();
+
+
+    /** The counters of one stage. */
+    static class Stage {
+        final String name;
+        final int threads;
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong blockedNanos = new AtomicLong();
+        final AtomicLong depthSum = new AtomicLong();
+        final AtomicInteger maxDepth = new AtomicInteger();
+
+        Stage( String name, int threads ) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        /** Records the depth of the input queue when a batch is taken from it. */
+        void sampleDepth( BlockingQueue<Batch> queue ) {
+            int depth = queue.size();
+            depthSum.addAndGet( depth );
+            maxDepth.accumulateAndGet( depth, Math::max );
+        }
+
+        /** Puts a batch in the next queue, counting the time spent waiting for room. */
+        void put( BlockingQueue<Batch> queue, Batch batch ) throws InterruptedException {
+            long startTime = System.nanoTime();
+            queue.put( batch );
+            blockedNanos.addAndGet( System.nanoTime() - startTime );
+        }
+
+        String report( long elapsedNanos ) {
+            double seconds = elapsedNanos / 1e9;
+            return String.format( "%-9s %d thread(s)  %6d files %8.1f MB  %7.0f files/s  busy %5.1f s  blocked %5.1f s  queue avg %.1f max %d",
+                                  name, threads, files.get(), bytes.get() / 1e6, files.get() / seconds,
+                                  busyNanos.get() / 1e9, blockedNanos.get() / 1e9,
+                                  batches.get() == 0 ? 0.0 : (double) depthSum.get() / batches.get(), maxDepth.get() );
+        }
+    }
+
+
+    /** The indexer whose documents are tokenized and inserted. */
+    private final Indexer indexer;
+
+    private final Stage discover = new Stage( "discover", 1 );
+    private final Stage read;
+    private final Stage tokenize;
+    private final Stage insert = new Stage( "insert", 1 );
+
+    private final BlockingQueue<Batch> readQueue = new ArrayBlockingQueue<Batch>( QUEUE_CAPACITY );
+    private final BlockingQueue<Batch> tokenizeQueue = new ArrayBlockingQueue<Batch>( QUEUE_CAPACITY );
+    private final BlockingQueue<Batch> insertQueue = new ArrayBlockingQueue<Batch>( QUEUE_CAPACITY );
+
+    /** Permits for the batches in the pipeline, taken by discover and returned by insert. */
+    private final Semaphore inFlight;
+
+    /** Reads the files of a batch concurrently, or null to read them one at a time. */
+    private final ConcurrentFileReader fileReader;
+
+
+    /**
+     *  Creates a pipeline with <code>readers</code> read threads and
+     *  <code>tokenizers</code> tokenize threads. If <code>concurrentReads</code>
+     *  is positive, each read thread keeps up to that many reads in flight
+     *  (all read threads together, since they share the reader).
+     */
+    public IndexingPipeline( Indexer indexer, int readers, int tokenizers, int concurrentReads ) {
+        this.indexer = indexer;
+        read = new Stage( "read", readers );
+        tokenize = new Stage( "tokenize", tokenizers );
+        inFlight = new Semaphore( 3*QUEUE_CAPACITY + readers + tokenizers );
+        fileReader = concurrentReads > 0 ? new ConcurrentFileReader( concurrentReads ) : null;
+    }
+
+
+    /**
+     *  Indexes the files under <code>f</code>, and prints the counters of
+     *  the stages.
+     */
+    public void run( File f ) {
+        long startTime = System.nanoTime();
+        // The documents an interrupted run indexed are skipped by discover
+        int firstDocID = Math.max( indexer.reserveDocIDs( 0 ), indexer.resumeDocID );
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        threads.add( start( discover, 0, () -> discover( f )));
+        AtomicInteger readers = new AtomicInteger( read.threads );
+        for ( int i=0; i<read.threads; i++ ) {
+            threads.add( start( read, i, () -> work( read, readQueue, tokenizeQueue, readers, this::read )));
+        }
+        AtomicInteger tokenizers = new AtomicInteger( tokenize.threads );
+        for ( int i=0; i<tokenize.threads; i++ ) {
+            threads.add( start( tokenize, i, () -> work( tokenize, tokenizeQueue, insertQueue, tokenizers, this::tokenize )));
+        }
+        try {
+            insert( firstDocID );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for ( Thread t : threads ) {
+                t.interrupt();
+            }
+            if ( fileReader != null ) {
+                fileReader.shutdown();
+            }
+        }
+        long elapsedTime = System.nanoTime() - startTime;
+        System.err.println( String.format( "Pipeline done in %.1f s, %.1f s after the start of the JVM",
+                                           elapsedTime / 1e9, ManagementFactory.getRuntimeMXBean().getUptime() / 1e3 ));
+        for ( Stage stage : new Stage[] { discover, read, tokenize, insert } ) {
+            System.err.println( stage.report( elapsedTime ));
+        }
+        if ( fileReader != null ) {
+            System.err.println( String.format( "read      %s threads, at most %d reads in flight",
+                                               fileReader.usesVirtualThreads() ? "virtual" : "platform",
+                                               fileReader.maxReadsInFlight() ));
+        }
+    }
+
+
+    private static Thread start( Stage stage, int i, Runnable body ) {
+        Thread t = new Thread( body, "index-" + stage.name + "-" + i );
+        t.setDaemon( true );
+        t.start();
+        return t;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  The discover stage: walks the directories in the order processFiles
+     *  does and puts the files in batches.
+     */
+    private void discover( File root ) {
+        try {
+            walk( root );
+            if ( !files.isEmpty() ) {
+                putBatch();
+            }
+            discover.put( readQueue, END );
+        } catch ( InterruptedException e ) {
+            // The pipeline was stopped
+        }
+    }
+
+
+    private void walk( File f ) throws InterruptedException {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        walk( new File( f, fs[i] ));
+                    }
+                }
+            } else if ( ArchiveReader.isArchive( f )) {
+                walkArchive( f );
+            } else if ( !indexer.unchanged( f )) {
+                add( f, f.getPath(), null );
+            }
+        }
+    }
+
+
+    /** Adds the documents of a container, with their bytes. */
+    private void walkArchive( File f ) throws InterruptedException {
+        try {
+            archiveReader.read( f, ( name, content, length ) -> {
+                discover.bytes.addAndGet( length );
+                String key = FileManifest.entryKey( f, name );
+                ByteBuffer text = ByteBuffer.wrap( content, 0, length );
+                if ( indexer.unchanged( key, text )) {
+                    return;
+                }
+                try {
+                    indexer.stamp( key, add( null, name, Arrays.copyOf( content, length )), 0, text );
+                } catch ( InterruptedException e ) {
+                    throw new InterruptedIOException();
+                }
+            });
+        } catch ( InterruptedIOException e ) {
+            throw new InterruptedException();
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing of " + f + ": " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Adds a document to the batch being made, or skips it if an
+     *  interrupted run indexed it, and returns the docID it will get.
+     */
+    private int add( File f, String name, byte[] content ) throws InterruptedException {
+        int docID = indexer.reserveDocIDs( 0 ) + files.size();
+        if ( files.isEmpty() && indexer.skip( docID, name )) {
+            indexer.reserveDocIDs( 1 );
+            if ( f != null ) {
+                indexer.stamp( f, docID );
+            }
+            return docID;
+        }
+        files.add( f );
+        names.add( name );
+        contents.add( content );
+        if ( files.size() == BATCH_SIZE ) {
+            putBatch();
+        }
+        return docID;
+    }
+
+
+    private void putBatch() throws InterruptedException {
+        long startTime = System.nanoTime();
+        inFlight.acquire();
+        discover.blockedNanos.addAndGet( System.nanoTime() - startTime );
+        Batch batch = new Batch( indexer.reserveDocIDs( files.size() ), new ArrayList<File>( files ),
+                                 new ArrayList<String>( names ), contents.toArray( new byte[contents.size()][] ));
+        files.clear();
+        names.clear();
+        contents.clear();
+        discover.batches.incrementAndGet();
+        discover.files.addAndGet( batch.files.size() );
+        discover.put( readQueue, batch );
+    }
+
+
+    /** The work of one of the threads of a stage, on one batch. */
+    interface Work {
+        void process( Batch batch ) throws InterruptedException;
+    }
+
+
+    /**
+     *  Runs one thread of a stage: takes batches from <code>input</code>,
+     *  processes them and puts them in <code>output</code>. The thread that
+     *  takes the END mark puts it back for the other threads of the stage;
+     *  the last one to stop passes it on.
+     */
+    private void work( Stage stage, BlockingQueue<Batch> input, BlockingQueue<Batch> output,
+                       AtomicInteger running, Work work ) {
+        try {
+            while ( true ) {
+                stage.sampleDepth( input );
+                Batch batch = input.take();
+                if ( batch == END ) {
+                    input.put( END );
+                    if ( running.decrementAndGet() == 0 ) {
+                        stage.put( output, END );
+                    }
+                    return;
+                }
+                long startTime = System.nanoTime();
+                try {
+                    work.process( batch );
+                } catch ( RuntimeException e ) {
+                    // Pass the batch on anyway, so that the later ones are inserted
+                    e.printStackTrace();
+                }
+                stage.busyNanos.addAndGet( System.nanoTime() - startTime );
+                stage.batches.incrementAndGet();
+                stage.files.addAndGet( batch.files.size() );
+                stage.put( output, batch );
+            }
+        } catch ( InterruptedException e ) {
+            // The pipeline was stopped
+        }
+    }
+
+
+    /** The read stage: reads all files of a batch. */
+    private void read( Batch batch ) throws InterruptedException {
+        for ( int i=0; i<batch.files.size(); i++ ) {
+            if ( batch.files.get( i ) != null ) {
+                batch.mtimes[i] = batch.files.get( i ).lastModified();
+            }
+        }
+        if ( fileReader != null ) {
+            byte[][] contents = fileReader.readAll( batch.files );
+            for ( int i=0; i<contents.length; i++ ) {
+                if ( contents[i] != null ) {
+                    batch.contents[i] = contents[i];
+                    read.bytes.addAndGet( contents[i].length );
+                }
+            }
+            return;
+        }
+        for ( int i=0; i<batch.files.size(); i++ ) {
+            if ( batch.files.get( i ) == null ) {
+                continue;
+            }
+            try {
+                batch.contents[i] = Files.readAllBytes( batch.files.get( i ).toPath() );
+                read.bytes.addAndGet( batch.contents[i].length );
+            } catch ( IOException e ) {
+                System.err.println( "Warning: IOException during indexing." );
+            }
+        }
+    }
+
+
+    /** The tokenize stage: tokenizes the files of a batch into a buffer. */
+    private void tokenize( Batch batch ) {
+        batch.buffer = new PostingsBuffer( batch.firstDocID, batch.files.size() );
+        for ( int i=0; i<batch.files.size(); i++ ) {
+            if ( batch.contents[i] != null ) {
+                if ( batch.files.get( i ) != null ) {
+                    indexer.stamp( batch.names.get( i ), batch.firstDocID + i, batch.mtimes[i], ByteBuffer.wrap( batch.contents[i] ));
+                }
+                indexer.tokenize( batch.contents[i], batch.firstDocID + i, batch.names.get( i ), batch.buffer );
+                tokenize.bytes.addAndGet( batch.contents[i].length );
+            }
+        }
+        batch.contents = null;
+    }
+
+
+    /**
+     *  The insert stage: inserts the buffers in docID order. Batches that
+     *  arrive before the ones with smaller docIDs wait.
+     */
+    private void insert( int nextDocID ) throws InterruptedException {
+        HashMap<Integer,Batch> waiting = new HashMap<Integer,Batch>();
+        while ( true ) {
+            insert.sampleDepth( insertQueue );
+            Batch batch = insertQueue.take();
+            if ( batch == END ) {
+                break;
+            }
+            waiting.put( batch.firstDocID, batch );
+            while (( batch = waiting.remove( nextDocID )) != null ) {
+                long startTime = System.nanoTime();
+                indexer.insertBuffer( batch.buffer );
+                insert.busyNanos.addAndGet( System.nanoTime() - startTime );
+                insert.batches.incrementAndGet();
+                insert.files.addAndGet( batch.files.size() );
+                nextDocID += batch.files.size();
+                inFlight.release();
+            }
+        }
+    }
+}
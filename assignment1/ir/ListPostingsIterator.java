@@ -0,0 +1,91 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+
+/**
+ *  A PostingsIterator over a PostingsList held in main memory.
+ */
+public class ListPostingsIterator implements PostingsIterator {
+
+    private final PostingsList list;
+
+    /** Index of the current entry in the list. */
+    private int index = -1;
+
+    private int docID = -1;
+
+    /** Positions of the current entry, filled when positions() is called. */
+    private int[] positions = new int[8];
+
+    public ListPostingsIterator( PostingsList list ) {
+        this.list = list;
+    }
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        if ( ++index >= list.size() ) {
+            index = list.size();
+            return docID = NO_MORE_DOCS;
+        }
+        return docID = list.docID( index );
+    }
+
+    /**
+     *  Gallops to the target: probes the entries 1, 2, 4, ... ahead until
+     *  one is at or past it, then binary-searches the last step. Reaching
+     *  an entry d entries ahead costs O(log d) comparisons, so a cursor of
+     *  a long list keeps up with a short one cheaply.
+     */
+    public int advance( int target ) {
+        if ( docID >= target ) {
+            return docID;
+        }
+        int size = list.size();
+        // The entry at lo is before the target; the one at hi (if any) is not
+        int lo = index;
+        int step = 1;
+        int hi = lo + step;
+        while ( hi < size && list.docID( hi ) < target ) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        hi = Math.min( hi, size );
+        while ( hi - lo > 1 ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( list.docID( mid ) < target ) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        index = hi - 1;
+        return nextDoc();
+    }
+
+    public int freq() {
+        return list.freq( index );
+    }
+
+    public int[] positions() {
+        int freq = list.freq( index );
+        if ( freq > positions.length ) {
+            positions = new int[Math.max( 2*positions.length, freq )];
+        }
+        list.copyPositions( index, positions );
+        return positions;
+    }
+
+    public int cost() {
+        return list.size();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+/*
+ *   A read-only file mapped into memory with FileChannel.map.
+ *
+ *   A single MappedByteBuffer can cover at most 2 GB, so larger files are
+ *   mapped as several consecutive regions. Reads that straddle two regions
+ *   are assembled byte by byte; all other reads are plain buffer accesses.
+ */
+public class MappedFile implements Closeable {
+
+    /** Each mapped region covers this many bytes (the last one may be shorter). */
+    static final long REGION_SIZE = 1L << 30;
+
+    /** The mapped regions, in file order. */
+    private final MappedByteBuffer[] regions;
+
+    /** The length of the file when it was mapped. */
+    private final long length;
+
+    private final FileChannel channel;
+
+
+    /**
+     *  Maps the whole file.
+     */
+    public MappedFile( String fileName ) throws IOException {
+        channel = FileChannel.open( Paths.get( fileName ), StandardOpenOption.READ );
+        length = channel.size();
+        int count = (int) (( length + REGION_SIZE - 1 ) / REGION_SIZE );
+        regions = new MappedByteBuffer[count];
+        for ( int i = 0; i < count; i++ ) {
+            long start = i * REGION_SIZE;
+            regions[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( REGION_SIZE, length - start ));
+        }
+    }
+
+
+    /** The number of bytes in the mapped file. */
+    public long length() {
+        return length;
+    }
+
+
+    /** Returns the byte at the given file position. */
+    public byte get( long pos ) {
+        return regions[(int) ( pos / REGION_SIZE )].get( (int) ( pos % REGION_SIZE ));
+    }
+
+
+    /** Returns the big-endian int at the given file position. */
+    public int getInt( long pos ) {
+        int offset = (int) ( pos % REGION_SIZE );
+        MappedByteBuffer region = regions[(int) ( pos / REGION_SIZE )];
+        if ( offset + 4 <= region.limit() ) {
+            return region.getInt( offset );
+        }
+        int value = 0;
+        for ( int i = 0; i < 4; i++ ) {
+            value = ( value << 8 ) | ( get( pos + i ) & 0xFF );
+        }
+        return value;
+    }
+
+
+    /** Returns the big-endian long at the given file position. */
+    public long getLong( long pos ) {
+        int offset = (int) ( pos % REGION_SIZE );
+        MappedByteBuffer region = regions[(int) ( pos / REGION_SIZE )];
+        if ( offset + 8 <= region.limit() ) {
+            return region.getLong( offset );
+        }
+        return (( (long) getInt( pos )) << 32 ) | ( getInt( pos + 4 ) & 0xFFFFFFFFL );
+    }
+
+
+    /**
+     *  Returns a buffer holding <code>size</code> bytes starting at the given
+     *  file position. The buffer shares the mapped memory unless the range
+     *  straddles two regions, in which case the bytes are copied.
+     */
+    public ByteBuffer slice( long pos, int size ) {
+        int offset = (int) ( pos % REGION_SIZE );
+        MappedByteBuffer region = regions[(int) ( pos / REGION_SIZE )];
+        if ( offset + size <= region.limit() ) {
+            ByteBuffer view = region.duplicate();
+            view.position( offset ).limit( offset + size );
+            return view.slice();
+        }
+        byte[] bytes = new byte[size];
+        for ( int i = 0; i < size; i++ ) {
+            bytes[i] = get( pos + i );
+        }
+        return ByteBuffer.wrap( bytes );
+    }
+
+
+    /**
+     *  Closes the channel. The mappings themselves stay valid until the
+     *  buffers are garbage collected.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*
+ *   Runs the merges of a persistent index on a fixed pool of worker
+ *   threads.
+ *
+ *   The pool never has more than a few threads, however many merges are
+ *   submitted; the rest wait in the queue. Every submitted merge leaves a
+ *   Future, so that the index can wait for all of them (including merges
+ *   submitted by other merges while it waits) or cancel them.
+ */
+public class MergeScheduler {
+
+    /** The worker threads. */
+    private final ExecutorService executor;
+
+    /** The merges that have been submitted and not yet waited for. */
+    private final ConcurrentLinkedQueue<Future<?>> pending = new ConcurrentLinkedQueue<>();
+
+
+    /**
+     *  Creates a scheduler that runs at most <code>threads</code> merges at
+     *  the same time.
+     */
+    public MergeScheduler( String name, int threads ) {
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool( threads, r -> {
+            Thread t = new Thread( r, name + "-" + count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        });
+    }
+
+
+    /**
+     *  A pool size suited to this machine: half of the cores (merges are
+     *  mostly I/O), but at least one and at most four.
+     */
+    public static int defaultThreads() {
+        return Math.max( 1, Math.min( 4, Runtime.getRuntime().availableProcessors() / 2 ));
+    }
+
+
+    /**
+     *  Queues a merge.
+     *
+     *  @throws RejectedExecutionException if the scheduler has been shut down.
+     */
+    public void submit( Runnable merge ) {
+        pending.add( executor.submit( merge ));
+    }
+
+
+    /**
+     *  Waits until every submitted merge has finished, including merges
+     *  submitted while waiting. A merge that failed has its exception
+     *  printed; the others are still waited for.
+     */
+    public void awaitAll() throws InterruptedException {
+        Future<?> future;
+        while (( future = pending.poll() ) != null ) {
+            try {
+                future.get();
+            } catch ( CancellationException e ) {
+                // Cancelled merges leave their input blocks in place
+            } catch ( ExecutionException e ) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     *  Lets the queued merges finish, then stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+
+    /**
+     *  Cancels the queued merges, interrupts the running ones and stops the
+     *  worker threads. Merges check for interruption and delete their
+     *  unfinished output.
+     */
+    public void cancel() {
+        Future<?> future;
+        while (( future = pending.poll() ) != null ) {
+            future.cancel( true );
+        }
+        executor.shutdownNow();
+    }
+
+
+    /**
+     *  Waits until the worker threads have stopped after shutdown() or
+     *  cancel(), at most <code>millis</code> milliseconds.
+     *
+     *  @return False if some merge was still running.
+     */
+    public boolean awaitTermination( long millis ) throws InterruptedException {
+        return executor.awaitTermination( millis, TimeUnit.MILLISECONDS );
+    }
+
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/*
+ *   The patterns for non-standard words, with a filter that tells which
+ *   of them can possibly occur in a candidate token.
+ *
+ *   The Tokenizer takes the first pattern, from top to bottom, that
+ *   occurs anywhere in a candidate token, and the leftmost match of that
+ *   pattern. Running every pattern on every candidate dominates
+ *   tokenization, although most candidates are plain words that no
+ *   pattern can match. So each pattern is analysed, conservatively, for
+ *   a set of characters of which every match contains at least one (an
+ *   '@' for e-mail addresses, a digit for times, ...). A candidate is
+ *   scanned once for the characters it contains, and only the patterns
+ *   whose set it meets are run, in the same order. The result is the
+ *   same as running them all.
+ *
+ *   (Merging the patterns into one alternation was tried, keeping the
+ *   priorities with lookaheads; java.util.regex backtracks through the
+ *   alternatives at every position, and on davisWiki that was 1.5 to 4
+ *   times slower than trying the patterns one by one.)
+ */
+public class PatternSet {
+
+    /** The patterns, from top to bottom. */
+    final List<Pattern> patterns;
+
+    /** For each pattern, the characters of which every match has one, or null if unknown. */
+    final CharSet[] required;
+
+
+    public PatternSet( List<Pattern> patterns ) {
+        this.patterns = new ArrayList<Pattern>( patterns );
+        required = new CharSet[patterns.size()];
+        for ( int i=0; i<required.length; i++ ) {
+            required[i] = new Analysis( patterns.get( i ).pattern() ).required();
+        }
+    }
+
+
+    /**
+     *  Finds non-standard words in candidate tokens. A finder is reused for
+     *  all candidates and is not thread-safe.
+     */
+    public Finder finder() {
+        return new Finder();
+    }
+
+
+    public class Finder {
+        final Matcher[] matchers = new Matcher[patterns.size()];
+        final CharSet chars = new CharSet();
+        int start;
+        int end;
+
+        Finder() {
+            for ( int i=0; i<matchers.length; i++ ) {
+                matchers[i] = patterns.get( i ).matcher( "" );
+            }
+        }
+
+        /**
+         *  Looks for the first pattern that occurs in <code>s</code>. If
+         *  there is one, returns true and sets start() and end() to the
+         *  span of its leftmost match.
+         */
+        public boolean find( CharSequence s ) {
+            chars.clear();
+            for ( int i=0; i<s.length(); i++ ) {
+                chars.add( s.charAt( i ));
+            }
+            for ( int i=0; i<matchers.length; i++ ) {
+                if ( required[i] != null && !required[i].meets( chars )) {
+                    continue;
+                }
+                Matcher m = matchers[i];
+                m.reset( s );
+                if ( m.find() ) {
+                    start = m.start();
+                    end = m.end();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+    }
+
+
+    /**
+     *  A set of characters: a bit per ASCII character, and a single bit
+     *  for all others.
+     */
+    static class CharSet {
+        long low;
+        long high;
+        boolean other;
+
+        void add( char c ) {
+            if ( c < 64 ) {
+                low |= 1L << c;
+            } else if ( c < 128 ) {
+                high |= 1L << ( c - 64 );
+            } else {
+                other = true;
+            }
+        }
+
+        void addAll( CharSet set ) {
+            low |= set.low;
+            high |= set.high;
+            other |= set.other;
+        }
+
+        boolean meets( CharSet set ) {
+            return ( low & set.low ) != 0 || ( high & set.high ) != 0 || ( other && set.other );
+        }
+
+        void clear() {
+            low = 0;
+            high = 0;
+            other = false;
+        }
+
+        /**
+         *  How often a candidate token is expected to meet the set: the
+         *  number of characters, where letters count much more than other
+         *  ASCII characters, and the non-ASCII ones more still.
+         */
+        int weight() {
+            int letters = Long.bitCount( high & LETTERS );
+            return Long.bitCount( low ) + Long.bitCount( high ) - letters + 64*letters + ( other ? 1 << 16 : 0 );
+        }
+
+        /** The bits of the ASCII letters in <code>high</code>. */
+        static final long LETTERS = 0x07fffffe07fffffeL;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Finds a set of characters of which every match of a regular
+     *  expression contains at least one: the set of some atom that must
+     *  occur (the least common one if there are several), and the union over
+     *  the alternatives of an alternation. The set may be too large, never
+     *  too small; expressions with constructs the analysis does not follow
+     *  (Unicode classes, nested classes, hex escapes, comments mode, ...)
+     *  get none.
+     */
+    static class Analysis {
+        final String r;
+        int i = 0;
+
+        /** Letters also match their other case. */
+        boolean caseInsensitive;
+
+        Analysis( String regex ) {
+            r = regex;
+            caseInsensitive = regex.matches( "(?s).*\\(\\?[a-zA-Z-]*i[a-zA-Z-]*[:)].*" );
+        }
+
+        /** Thrown on constructs the analysis does not follow. */
+        static class Unknown extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            Unknown() {
+                super( null, null, false, false );
+            }
+        }
+
+        /** The set of the expression, or null if there is none. */
+        CharSet required() {
+            try {
+                CharSet set = alternation();
+                return i == r.length() ? set : null;
+            } catch ( Unknown | IndexOutOfBoundsException | NumberFormatException e ) {
+                return null;
+            }
+        }
+
+        /** The union of the sets of the alternatives, or null if one has none. */
+        private CharSet alternation() {
+            CharSet set = sequence();
+            while ( i < r.length() && r.charAt( i ) == '|' ) {
+                i++;
+                CharSet alternative = sequence();
+                if ( set != null && alternative != null ) {
+                    set.addAll( alternative );
+                } else {
+                    set = null;
+                }
+            }
+            return set;
+        }
+
+        /** The set of an atom that occurs at least once, the one of least weight if there are several. */
+        private CharSet sequence() {
+            CharSet best = null;
+            while ( i < r.length() && r.charAt( i ) != '|' && r.charAt( i ) != ')' ) {
+                CharSet atom = atom();
+                int min = minRepetitions();
+                if ( atom != null && min > 0 && ( best == null || atom.weight() < best.weight() )) {
+                    best = atom;
+                }
+            }
+            return best;
+        }
+
+        /** The set of characters an atom matches one of, or null. */
+        private CharSet atom() {
+            char c = r.charAt( i++ );
+            switch ( c ) {
+            case '(':
+                return group();
+            case '[':
+                return charClass();
+            case '\\':
+                return escape( false );
+            case '.': case '^': case '$':
+                return null;
+            default:
+                return literal( c, new CharSet() );
+            }
+        }
+
+        private CharSet literal( char c, CharSet set ) {
+            set.add( c );
+            if ( caseInsensitive && Character.isLetter( c )) {
+                set.add( Character.toUpperCase( c ));
+                set.add( Character.toLowerCase( c ));
+                // Unicode case folding maps some letters outside ASCII to ASCII ones
+                set.other = true;
+            }
+            return set;
+        }
+
+        private CharSet group() {
+            boolean zeroWidth = false;
+            if ( r.charAt( i ) == '?' ) {
+                i++;
+                char c = r.charAt( i );
+                if ( c == ':' || c == '>' ) {
+                    i++;
+                } else if ( c == '=' || c == '!' ) {
+                    i++;
+                    zeroWidth = true;
+                } else if ( c == '<' ) {
+                    i++;
+                    if ( r.charAt( i ) == '=' || r.charAt( i ) == '!' ) {
+                        i++;
+                        zeroWidth = true;
+                    } else {
+                        // A named group
+                        i = r.indexOf( '>', i ) + 1;
+                        if ( i == 0 ) {
+                            throw new Unknown();
+                        }
+                    }
+                } else {
+                    // Flags, alone or for the group
+                    while ( Character.isLetter( r.charAt( i )) || r.charAt( i ) == '-' ) {
+                        if ( r.charAt( i ) == 'x' || r.charAt( i ) == 'U' ) {
+                            throw new Unknown();
+                        }
+                        i++;
+                    }
+                    if ( r.charAt( i ) == ')' ) {
+                        i++;
+                        return null;
+                    }
+                    if ( r.charAt( i++ ) != ':' ) {
+                        throw new Unknown();
+                    }
+                }
+            }
+            CharSet set = alternation();
+            if ( r.charAt( i++ ) != ')' ) {
+                throw new Unknown();
+            }
+            return zeroWidth ? null : set;
+        }
+
+        /**
+         *  An escape after the backslash: the set of characters it matches,
+         *  or null if that is not known.
+         */
+        private CharSet escape( boolean inClass ) {
+            char c = r.charAt( i++ );
+            CharSet set = new CharSet();
+            switch ( c ) {
+            case 'd':
+                for ( char d = '0'; d <= '9'; d++ ) {
+                    set.add( d );
+                }
+                return set;
+            case 's':
+                for ( char w : new char[] { ' ', '\t', '\n', '\u000B', '\f', '\r' } ) {
+                    set.add( w );
+                }
+                return set;
+            case 't':
+                set.add( '\t' );
+                return set;
+            case 'n':
+                set.add( '\n' );
+                return set;
+            case 'r':
+                set.add( '\r' );
+                return set;
+            case 'f':
+                set.add( '\f' );
+                return set;
+            case 'a':
+                set.add( '\u0007' );
+                return set;
+            case 'e':
+                set.add( '\u001B' );
+                return set;
+            case 'D': case 'S': case 'w': case 'W':
+                return null;
+            case 'b': case 'B': case 'A': case 'z': case 'Z': case 'G':
+                if ( inClass ) {
+                    throw new Unknown();
+                }
+                return null;
+            default:
+                if ( Character.isLetterOrDigit( c )) {
+                    throw new Unknown();
+                }
+                // An escaped punctuation character
+                set.add( c );
+                return set;
+            }
+        }
+
+        /** The set of a character class, or null if it is negated or may hold any character. */
+        private CharSet charClass() {
+            if ( r.charAt( i ) == '^' || r.charAt( i ) == ']' ) {
+                throw new Unknown();
+            }
+            CharSet set = new CharSet();
+            boolean known = true;
+            while ( r.charAt( i ) != ']' ) {
+                char c = r.charAt( i++ );
+                if ( c == '[' || ( c == '&' && r.charAt( i ) == '&' )) {
+                    throw new Unknown();
+                }
+                if ( c == '\\' ) {
+                    if ( Character.isLetterOrDigit( r.charAt( i ))) {
+                        CharSet escaped = escape( true );
+                        if ( escaped == null ) {
+                            known = false;
+                        } else {
+                            set.addAll( escaped );
+                        }
+                        continue;
+                    }
+                    c = r.charAt( i++ );
+                }
+                if ( r.charAt( i ) == '-' && r.charAt( i + 1 ) != ']' ) {
+                    i++;
+                    char last = r.charAt( i++ );
+                    if ( last == '\\' || last == '[' ) {
+                        throw new Unknown();
+                    }
+                    for ( int x = c; x <= last; x++ ) {
+                        literal( (char) x, set );
+                    }
+                } else {
+                    literal( c, set );
+                }
+            }
+            i++;
+            return known ? set : null;
+        }
+
+        /** The least number of times the quantifier after an atom allows, 1 if there is none. */
+        private int minRepetitions() {
+            if ( i == r.length() ) {
+                return 1;
+            }
+            int min;
+            char c = r.charAt( i );
+            if ( c == '?' || c == '*' ) {
+                i++;
+                min = 0;
+            } else if ( c == '+' ) {
+                i++;
+                min = 1;
+            } else if ( c == '{' ) {
+                int close = r.indexOf( '}', i );
+                String[] bounds = r.substring( i + 1, close ).split( ",", -1 );
+                min = Integer.parseInt( bounds[0] );
+                i = close + 1;
+            } else {
+                return 1;
+            }
+            // Lazy and possessive quantifiers
+            if ( i < r.length() && ( r.charAt( i ) == '?' || r.charAt( i ) == '+' )) {
+                i++;
+            }
+            return min;
+        }
+    }
+}
@@ -9,6 +9,7 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.*;
 import java.time.Duration;
 import java.time.Instant;
@@ -53,6 +54,18 @@ public class PersistentHashedIndex implements Index {
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
+    /** The format of the data file, see PostingsCodec. */
+    byte format = PostingsCodec.FORMAT_TEXT;
+
+    /** Encodes the postings lists when the index is written (this index keeps the 12-byte dictionary entries of FORMAT_BINARY). */
+    PostingsCodec codec = new PostingsCodec(PostingsCodec.FORMAT_BINARY);
+
+    /** Write the dictionary as a sorted block dictionary instead of a hash table. */
+    boolean sortedDictionary = false;
+
+    /** The open dictionary if it is a sorted block dictionary, null for a hash table. */
+    BlockTermDictionary terms = null;
+
     /** The cache as a main-memory hash map. */
     HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
 
@@ -90,6 +103,10 @@ public class PersistentHashedIndex implements Index {
 
             dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
             dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
+            format = PostingsCodec.readFormat(dataFile);
+            if (BlockTermDictionary.isBlockDictionary(dictionaryFile)) {
+                terms = new BlockTermDictionary(dictionaryFile);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -107,10 +124,9 @@ public class PersistentHashedIndex implements Index {
      *
      * @return The number of bytes written.
      */
-    int writeData(RandomAccessFile dataFileToWrite, String dataString, long ptr) {
+    int writeData(RandomAccessFile dataFileToWrite, byte[] data, long ptr) {
         try {
             dataFileToWrite.seek(ptr);
-            byte[] data = dataString.getBytes();
             dataFileToWrite.write(data);
             return data.length;
         } catch (IOException e) {
@@ -122,12 +138,12 @@ public class PersistentHashedIndex implements Index {
     /**
      * Reads data from the data file
      */
-    String readData(long ptr, int size) {
+    byte[] readData(long ptr, int size) {
         try {
             dataFile.seek(ptr);
             byte[] data = new byte[size];
             dataFile.readFully(data);
-            return new String(data);
+            return data;
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -183,7 +199,7 @@ public class PersistentHashedIndex implements Index {
     // ==================================================================
 
     /**
-     * Writes the document names and document lengths to file.
+     * Writes the document names, lengths and Euclidean lengths to file.
      *
      * @throws IOException { exception_description }
      */
@@ -200,7 +216,7 @@ public class PersistentHashedIndex implements Index {
         FileOutputStream fout = new FileOutputStream(foutFileName);
         for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
             Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
+            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + ";" + docEuclideanLengths.get(key) + "\n";
             fout.write(docInfoEntry.getBytes());
         }
         fout.close();
@@ -221,6 +237,10 @@ public class PersistentHashedIndex implements Index {
                 String[] data = line.split(";");
                 docNames.put(new Integer(data[0]), data[1]);
                 docLengths.put(new Integer(data[0]), new Integer(data[2]));
+                // Written since the Euclidean lengths were added
+                if (data.length > 3) {
+                    docEuclideanLengths.put(Integer.valueOf(data[0]), Double.valueOf(data[3]));
+                }
             }
         }
         freader.close();
@@ -232,36 +252,59 @@ public class PersistentHashedIndex implements Index {
     public void writeIndex(String fileName) {
         int collisions = 0;
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
+            // Write the 'docNames' and 'docLengths' hash maps to a file,
+            // with the Euclidean lengths of the documents
+            Index.computeEuclideanLengths(index);
             writeDocInfo(fileName);
 
+            // Start both files empty: stale bytes of an earlier index would
+            // look like occupied slots or a block dictionary
+            dictionaryFile.setLength(0);
+            dataFile.setLength(0);
+            terms = null;
+
+            // Write the data file header; the records follow it
+            PostingsCodec.writeHeader(dataFile, PostingsCodec.FORMAT_BINARY);
+            format = PostingsCodec.FORMAT_BINARY;
+            free = PostingsCodec.HEADER_SIZE;
+
             // Write the dictionary and the postings list
             List<String> keys = new ArrayList<>(index.keySet());
             Collections.sort(keys);
             int totalKeys = keys.size();
             int counter = 0;
+            BlockTermDictionary.Writer blocks = sortedDictionary ? new BlockTermDictionary.Writer(dictionaryFile) : null;
             System.out.println("Write index to dataFile and dictionary...");
             for (String key : keys) {
-                // Find empty slot in dictionary
-                long hashValue = calculateHash(key);
-                while (entryExists(dictionaryFile, hashValue)) {
-                    hashValue = (hashValue + 1) % TABLESIZE;
-                    collisions++;
-                }
                 if (counter % 1000 == 0) {
                     System.err.print("\r" + progressBar(counter, totalKeys));
                 }
                 // Write to dataFile
-                String data = key + " " + index.get(key).toString() + "\n";
+                byte[] data = codec.encode(key, index.get(key));
                 int size = writeData(dataFile, data, free);
 
                 // Write to dictionaryFile
-                Entry entry = new Entry(free, size);
-                writeEntry(entry, hashValue, dictionaryFile);
+                if (blocks != null) {
+                    // The keys are sorted, so they can be added to the block dictionary directly
+                    blocks.add(key, free, size);
+                } else {
+                    // Find empty slot in dictionary
+                    long hashValue = calculateHash(key);
+                    while (entryExists(dictionaryFile, hashValue)) {
+                        hashValue = (hashValue + 1) % TABLESIZE;
+                        collisions++;
+                    }
+                    Entry entry = new Entry(free, size);
+                    writeEntry(entry, hashValue, dictionaryFile);
+                }
 
                 free += size;
                 counter++;
             }
+            if (blocks != null) {
+                blocks.close();
+                terms = new BlockTermDictionary(dictionaryFile);
+            }
             System.err.println("\r" + progressBar(totalKeys, totalKeys));
         } catch (IOException e) {
             e.printStackTrace();
@@ -293,6 +336,47 @@ public class PersistentHashedIndex implements Index {
      * if the term is not in the index.
      */
     public PostingsList getPostings(String token) {
+        ByteBuffer record = findRecord(token);
+        return record == null ? null : decodePostings(record);
+    }
+
+    /**
+     * Returns a cursor over the postings for a specific term, or null
+     * if the term is not in the index.
+     */
+    public PostingsIterator getPostingsIterator(String token) {
+        ByteBuffer record = findRecord(token);
+        if (record == null) {
+            return null;
+        }
+        if (format == PostingsCodec.FORMAT_TEXT) {
+            return new ListPostingsIterator(decodePostings(record));
+        }
+        return new EncodedPostingsIterator(record, format);
+    }
+
+    /**
+     * Finds the data record of a term.
+     * 
+     * @return The record positioned just after its term, or null if the
+     *         term is not in the index.
+     */
+    ByteBuffer findRecord(String token) {
+        if (terms != null) {
+            // Sorted block dictionary: read the one block that can hold the token
+            try {
+                BlockTermDictionary.Entry entry = terms.lookup(token);
+                if (entry == null) {
+                    return null;
+                }
+                ByteBuffer record = ByteBuffer.wrap(readData(entry.ptr, entry.size));
+                return matchRecord(record, token) ? record : null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
         // Calculate the hash value of the token
         long hashValue = calculateHash(token);
         Instant startTime = Instant.now();
@@ -304,17 +388,15 @@ public class PersistentHashedIndex implements Index {
             // Read the entry at the calculated hash position
             Entry entry = readEntry(dictionaryFile, hashValue);
 
-            // Read the data associated with the entry
-            String[] data = readData(entry.ptr, entry.size).split(" ");
-
-            // Check if the first element of the data array matches the token
-            if (data[0].equals(token)) {
+            // Read the data associated with the entry and check if it belongs to the token
+            ByteBuffer record = ByteBuffer.wrap(readData(entry.ptr, entry.size));
+            if (matchRecord(record, token)) {
                 Instant endTime = Instant.now();
                 Duration elapsedTime = Duration.between(startTime, endTime);
-                // If a match is found, return the associated postings list
+                // If a match is found, return the associated record
                 System.out.println("Collisions: " + collisions);
                 System.out.println("Searching time for token '" + token + "'': " + elapsedTime.toMillis() + " ms");
-                return new PostingsList(data[1].trim());
+                return record;
             }
 
             // If no match is found, move to the next slot in the hash table
@@ -326,23 +408,52 @@ public class PersistentHashedIndex implements Index {
         return null;
     }
 
+    /**
+     * Checks that a record belongs to the token. If it does, the record is
+     * left positioned just after the term.
+     */
+    boolean matchRecord(ByteBuffer record, String token) {
+        if (format == PostingsCodec.FORMAT_TEXT) {
+            // Old format: "term docID:pos,pos;docID:pos\n"
+            int end = 0;
+            while (end < record.limit() && record.get(end) != ' ') {
+                end++;
+            }
+            if (!new String(record.array(), 0, end).equals(token)) {
+                return false;
+            }
+            record.position(Math.min(end + 1, record.limit()));
+            return true;
+        }
+        return PostingsCodec.decodeTerm(record).equals(token);
+    }
+
+    /**
+     * Decodes the postings of a record that has been positioned after its
+     * term by matchRecord.
+     */
+    PostingsList decodePostings(ByteBuffer record) {
+        if (format == PostingsCodec.FORMAT_TEXT) {
+            String data = new String(record.array(), record.position(), record.remaining());
+            return new PostingsList(data.trim());
+        }
+        return PostingsCodec.decodePostings(record, format);
+    }
+
     /**
      * Inserts this token in the main-memory hashtable.
      */
     public void insert(String token, int docID, int offset) {
-        // Create a new PostingsEntry
-        PostingsEntry entry = new PostingsEntry(docID, offset);
         // Check if the token already exists in the index
-        if (index.containsKey(token)) {
-            // If the token exists, get its postings list and add the new entry
-            PostingsList postingsList = index.get(token);
-            postingsList.insert(entry);
-        } else {
-            // If the token doesn't exist, create a new postings list and add the entry
-            PostingsList postingsList = new PostingsList();
-            postingsList.insert(entry);
+        PostingsList postingsList = index.get(token);
+        if (postingsList == null) {
+            // If the token doesn't exist, create a new postings list
+            postingsList = new PostingsList();
             index.put(token, postingsList);
         }
+        // Documents are indexed in docID order, so the occurrence belongs
+        // to the last document of the list or comes after it
+        postingsList.addPosting(docID, offset);
     }
 
     /**
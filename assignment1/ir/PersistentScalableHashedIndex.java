@@ -9,7 +9,24 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 
 /*
@@ -22,6 +39,16 @@ import java.nio.charset.*;
 *   When words are read and indexed, they are first put in an ordinary,
 *   main-memory HashMap. When all words are read, the index is committed
 *   to disk.
+*
+*   The blocks written while indexing are recorded in a manifest, which is
+*   replaced atomically whenever a block has been written or merged. If
+*   indexing is interrupted, resume() reads the manifest back, and indexing
+*   continues after the last document of the blocks on disk.
+*
+*   The index can also be updated instead of rebuilt (see FileManifest):
+*   the new and changed documents are indexed into a segment of their own,
+*   which is searched together with the index, and the documents that
+*   changed or are gone are left out of the results.
 */
 public class PersistentScalableHashedIndex implements Index {
 
@@ -40,6 +67,12 @@ public class PersistentScalableHashedIndex implements Index {
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
+    /** The manifest file name */
+    public static final String MANIFEST_FNAME = "manifest";
+
+    /** The file stamps file name */
+    public static final String FILES_FNAME = "files";
+
     /** The dictionary hash table on disk can fit this many entries. */
     public static final long TABLESIZE = 3_500_017L;
     // public static final long TABLESIZE = 611953L;
@@ -53,9 +86,38 @@ public class PersistentScalableHashedIndex implements Index {
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
+    /** The format of the data file, see PostingsCodec. */
+    byte format = PostingsCodec.FORMAT_TEXT;
+
+    /** Encodes the postings lists when a block is written. */
+    PostingsCodec codec = new PostingsCodec();
+
+    /** Write the dictionaries as sorted block dictionaries instead of hash tables. */
+    boolean sortedDictionary = false;
+
+    /** The open dictionary if it is a sorted block dictionary, null for a hash table. */
+    BlockTermDictionary terms = null;
+
+    /** Memory-mapped dictionary and data files, used in read-only mode. */
+    MappedFile mappedDictionary = null;
+    MappedFile mappedData = null;
+
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** The dictionary and data files of the index, once it is written. */
+    String indexDictName = INDEXDIR + "/" + DICTIONARY_FNAME;
+    String indexDataName = INDEXDIR + "/" + DATA_FNAME;
+
+    /** The stamps of the documents, the segments added by updates and the deleted documents. */
+    FileManifest files = new FileManifest();
+
+    /** The segments added by updates, opened read-only, oldest first. */
+    List<PersistentScalableHashedIndex> updates = new ArrayList<>();
+
+    /** True while an update is being indexed. */
+    boolean updating = false;
+
 
     // ===================================================================
 
@@ -65,29 +127,108 @@ public class PersistentScalableHashedIndex implements Index {
     public class Entry {
         long ptr;
         int size; 
+        long fingerprint;
+        int termLength = -1;    // -1 if the entry has no fingerprint (old layout)
 
         public Entry(long ptr, int size) {
             this.ptr = ptr;
             this.size = size;
         }
+
+        public Entry(long ptr, int size, long fingerprint, int termLength) {
+            this(ptr, size);
+            this.fingerprint = fingerprint;
+            this.termLength = termLength;
+        }
+
+        /** False if this entry certainly belongs to another term than the token. */
+        boolean mayMatch(String token, long tokenFingerprint) {
+            return termLength < 0 || (termLength == token.length() && fingerprint == tokenFingerprint);
+        }
     }
 
-    int ENTRY_SIZE = 12;        // 12 bytes per entry (long + int)
+    int ENTRY_SIZE = 24;        // 24 bytes per entry (long + int + long + int)
+    int LEGACY_ENTRY_SIZE = 12; // 12 bytes per entry (long + int), before FORMAT_FINGERPRINTS
+    int entrySize = ENTRY_SIZE; // Entry size of the dictionary that is currently open
+
+    // Probes and data file reads of the last lookup, and totals over all lookups
+    int lastProbes = 0;
+    int lastDataReads = 0;
+    long totalProbes = 0;
+    long totalDataReads = 0;
+    long lookups = 0;
+
     int total_tokens = 0;
     // Total tokens (guardian): 57_663_287
     int token_count = 0;
-    int TOKEN_LIMIT = 10_000_000;
+    // About 13 bytes per token with the int-array PostingsLists (vs. 60+ with
+    // boxed positions). Up to two blocks are in memory while one is flushed,
+    // so two blocks of 25M tokens fit within -Xmx1g
+    int TOKEN_LIMIT = 25_000_000;
     // int TOKEN_LIMIT = 1_000_000;
     int previous_docID = -1;
 
     int intermediary_number = 0;
-    ArrayList<String> intermediate_dict = new ArrayList<>();
-    ArrayList<String> intermediate_data = new ArrayList<>();
-    ArrayList<String> intermediate_info = new ArrayList<>();
-    HashMap<String, Boolean> merging = new HashMap<>();
-    ArrayList<Thread> threads = new ArrayList<>();
 
-    String foutName;
+    /**
+     *  The docID after the last document of the blocks written so far, and
+     *  the name of that document (written by the flusher thread).
+    */
+    int flushedDocID = 0;
+    String flushedDocName = null;
+
+    /** The directories being indexed, recorded in the manifest. */
+    List<String> inputs = new ArrayList<>();
+
+    /** The files of the block being built in memory. */
+    String blockDictName = INDEXDIR + "/" + DICTIONARY_FNAME;
+    String blockDataName = INDEXDIR + "/" + DATA_FNAME;
+    String foutName = INDEXDIR + "/" + DOCINFO_FNAME;
+
+    /**
+     *  The blocks written to disk so far, in docID order. The list is never
+     *  modified: every change (a new block, the start or end of a merge)
+     *  swaps in a new list, so merges on other threads always see a
+     *  consistent set of blocks.
+     */
+    final AtomicReference<List<Segment>> segments = new AtomicReference<>(Collections.emptyList());
+
+    /** Writes full blocks to disk in the background, one at a time and in order. */
+    ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     *  Number of full blocks that may be waiting for or in the flusher while
+     *  the next one is filled. With 1, one block is written while another
+     *  is filled (double buffering), so up to two blocks are in memory.
+     */
+    static final int MAX_PENDING_FLUSHES = 1;
+    final Semaphore flushPermits = new Semaphore(MAX_PENDING_FLUSHES);
+    Future<?> lastFlush = null;
+
+    /** Flush statistics for the indexing summary (written by the flusher thread). */
+    volatile int flushes = 0;
+    volatile long flushNanos = 0;
+    long flushStallNanos = 0;
+
+    /** Runs the merges; at most a few at a time. */
+    MergeScheduler scheduler = new MergeScheduler("merger", MergeScheduler.defaultThreads());
+    /** How long cancelMerges() waits for the running merges to stop. */
+    static final long MERGE_STOP_MILLIS = 10000;
+
+    /** Merge blocks of similar size in the background while indexing (tiered policy). */
+    boolean tieredMerge = false;
+    /** Number of blocks merged at a time by the tiered policy. */
+    int MERGE_FACTOR = 4;
+
+    /** Merge statistics for the indexing summary. */
+    final AtomicInteger merges = new AtomicInteger();
+    final AtomicInteger mergedBlocks = new AtomicInteger();
+    final AtomicLong mergeNanos = new AtomicLong();
+    final AtomicLong mergeBytesWritten = new AtomicLong();
 
 
     // ==================================================================
@@ -98,13 +239,13 @@ public class PersistentScalableHashedIndex implements Index {
     *  If these files don't exist, they will be created. 
     */
     public PersistentScalableHashedIndex() {
-        intermediate_dict.add(INDEXDIR + "/" + DICTIONARY_FNAME);
-        intermediate_data.add(INDEXDIR + "/" + DATA_FNAME);
-        foutName = INDEXDIR + "/" + DOCINFO_FNAME;
-        merging.put(intermediate_dict.get(intermediate_dict.size()-1), true);
+        // The merge threads are daemons, which the JVM would stop in the
+        // middle of writing a merged segment
+        Runtime.getRuntime().addShutdownHook(new Thread(this::cancelMerges, "merge-cancel"));
         try {
-            dictionaryFile = new RandomAccessFile(intermediate_dict.get(0), "rw" );
-            dataFile = new RandomAccessFile(intermediate_data.get(0), "rw" );
+            dictionaryFile = new RandomAccessFile(blockDictName, "rw" );
+            dataFile = new RandomAccessFile(blockDataName, "rw" );
+            detectFormat();
         } catch ( IOException e ) {
             e.printStackTrace();
         }
@@ -115,33 +256,50 @@ public class PersistentScalableHashedIndex implements Index {
         } catch ( IOException e ) {
             e.printStackTrace();
         }
+        openUpdates();
     }
 
-    public void createNewIntermediaryFiles() {
-        ++intermediary_number;
-        intermediate_dict.add(INDEXDIR + "/" + DICTIONARY_FNAME + intermediary_number);
-        intermediate_data.add(INDEXDIR + "/" + DATA_FNAME + intermediary_number);
-        merging.put(intermediate_dict.get(intermediate_dict.size()-1), true);
-        foutName = INDEXDIR + "/" + DOCINFO_FNAME + intermediary_number;
+    /**
+     *  Opens a segment added by an update, read-only, to look terms up in.
+    */
+    private PersistentScalableHashedIndex(String dictName, String dataName) {
+        indexDictName = dictName;
+        indexDataName = dataName;
         try {
-            dictionaryFile.close();
-            dataFile.close();
-            dictionaryFile = new RandomAccessFile(intermediate_dict.get(intermediate_dict.size()-1), "rw" );
-            dataFile = new RandomAccessFile(intermediate_data.get(intermediate_data.size()-1), "rw" );
-        } catch ( IOException e ) {
+            dictionaryFile = new RandomAccessFile(dictName, "r");
+            dataFile = new RandomAccessFile(dataName, "r");
+            detectFormat();
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     *  Reads the format of the open data file and finds out what kind of
+     *  dictionary the open dictionary file holds.
+    */
+    private void detectFormat() throws IOException {
+        format = PostingsCodec.readFormat(dataFile);
+        entrySize = format >= PostingsCodec.FORMAT_FINGERPRINTS ? ENTRY_SIZE : LEGACY_ENTRY_SIZE;
+        terms = BlockTermDictionary.isBlockDictionary(dictionaryFile) ? new BlockTermDictionary(dictionaryFile) : null;
+    }
+
+    public void createNewIntermediaryFiles() {
+        ++intermediary_number;
+        blockDictName = INDEXDIR + "/" + DICTIONARY_FNAME + intermediary_number;
+        blockDataName = INDEXDIR + "/" + DATA_FNAME + intermediary_number;
+        foutName = INDEXDIR + "/" + DOCINFO_FNAME + intermediary_number;
+        // The files are created by writeBlock
+    }
+
     /**
      *  Writes data to the data file at a specified place.
     *
     *  @return The number of bytes written.
     */ 
-    int writeData( String dataString, long ptr ) {
+    int writeData( byte[] data, long ptr ) {
         try {
             dataFile.seek( ptr ); 
-            byte[] data = dataString.getBytes();
             dataFile.write( data );
             return data.length;
         } catch ( IOException e ) {
@@ -154,12 +312,12 @@ public class PersistentScalableHashedIndex implements Index {
     /**
      *  Reads data from the data file
     */ 
-    String readData( long ptr, int size ) {
+    byte[] readData( long ptr, int size ) {
         try {
             dataFile.seek( ptr );
             byte[] data = new byte[size];
             dataFile.readFully( data );
-            return new String(data);
+            return data;
         } catch ( IOException e ) {
             e.printStackTrace();
             return null;
@@ -167,6 +325,41 @@ public class PersistentScalableHashedIndex implements Index {
     }
 
 
+    /**
+     *  Returns the record at the given place in the data file, either as a
+     *  view of the mapped data file or as a freshly read buffer.
+     */
+    ByteBuffer readRecord( long ptr, int size ) {
+        if (mappedData != null) {
+            return mappedData.slice(ptr, size);
+        }
+        byte[] data = readData(ptr, size);
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+
+
+    /**
+     *  Maps the final dictionary and data files into memory. After this call,
+     *  lookups are served from the mappings instead of by seeking in the
+     *  RandomAccessFiles, so the index must not be written to any more.
+     */
+    public void mapIndexFiles() {
+        try {
+            mappedDictionary = new MappedFile(indexDictName);
+            mappedData = new MappedFile(indexDataName);
+            if (terms != null) terms.map(mappedDictionary);
+            System.err.println("Mapped " + (mappedDictionary.length() + mappedData.length()) + " bytes of index files");
+        } catch (IOException e) {
+            e.printStackTrace();
+            mappedDictionary = null;
+            mappedData = null;
+        }
+        for (PersistentScalableHashedIndex update : updates) {
+            update.mapIndexFiles();
+        }
+    }
+
+
     // ==================================================================
     //
     //  Reading and writing to the dictionary file.
@@ -177,12 +370,16 @@ public class PersistentScalableHashedIndex implements Index {
     *  @param entry The key of this entry is assumed to have a fixed length
     *  @param ptr   The place in the dictionary file to store the entry
     */
-    void writeEntry( Entry entry, long ptr ) {
+    void writeEntry( RandomAccessFile dict, Entry entry, long ptr ) {
         try {
-            dictionaryFile.seek(ptr);
-            dictionaryFile.writeLong(entry.ptr);
-            dictionaryFile.seek(ptr + 8);
-            dictionaryFile.writeInt(entry.size);
+            byte[] bytes = ByteBuffer.allocate(ENTRY_SIZE)
+                .putLong(entry.ptr)
+                .putInt(entry.size)
+                .putLong(entry.fingerprint)
+                .putInt(entry.termLength)
+                .array();
+            dict.seek(ptr);
+            dict.write(bytes);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -191,22 +388,37 @@ public class PersistentScalableHashedIndex implements Index {
     /**
      *  Reads an entry from the dictionary file.
     *
-    *  @param ptr The place in the dictionary file where to start reading.
+    *  @param dict      The dictionary file.
+    *  @param ptr       The place in the dictionary file where to start reading.
+    *  @param entrySize The entry layout of the file (ENTRY_SIZE or LEGACY_ENTRY_SIZE).
     */
-    Entry readEntry( RandomAccessFile dict, long ptr ) {   
+    Entry readEntry( RandomAccessFile dict, long ptr, int entrySize ) {   
         try {
+            byte[] bytes = new byte[entrySize];
             dict.seek(ptr);
-            long entry_ptr = dict.readLong();
-            dict.seek(ptr + 8);
-            int entry_size = dict.readInt();
-            Entry entry = new Entry(entry_ptr, entry_size);
-            return entry;
+            dict.readFully(bytes);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if (entrySize == LEGACY_ENTRY_SIZE) {
+                return new Entry(buf.getLong(), buf.getInt());
+            }
+            return new Entry(buf.getLong(), buf.getInt(), buf.getLong(), buf.getInt());
         } catch (IOException e) {
         }
         return null;
     }
+    Entry readEntry( RandomAccessFile dict, long ptr ) {   
+        return readEntry(dict, ptr, ENTRY_SIZE);
+    }
     Entry readEntry( long ptr ) {   
-        return readEntry(dictionaryFile, ptr);
+        if (mappedDictionary != null) {
+            if (ptr + entrySize > mappedDictionary.length()) return null;
+            if (entrySize == LEGACY_ENTRY_SIZE) {
+                return new Entry(mappedDictionary.getLong(ptr), mappedDictionary.getInt(ptr + 8));
+            }
+            return new Entry(mappedDictionary.getLong(ptr), mappedDictionary.getInt(ptr + 8),
+                             mappedDictionary.getLong(ptr + 12), mappedDictionary.getInt(ptr + 20));
+        }
+        return readEntry(dictionaryFile, ptr, entrySize);
     }
 
 
@@ -217,12 +429,14 @@ public class PersistentScalableHashedIndex implements Index {
     *
     * @throws IOException  { exception_description }
     */
-    private void writeDocInfo() throws IOException {
-        intermediate_info.add(foutName);
-        FileOutputStream fout = new FileOutputStream(intermediate_info.get(intermediate_info.size()-1));
-        for ( Map.Entry<Integer,String> entry : docNames.entrySet() ) {
+    private void writeDocInfo( Block block, DocLengths lengths ) throws IOException {
+        // In docID order, so that the merged file does not depend on where
+        // the blocks were cut
+        TreeMap<Integer,String> names = new TreeMap<>(block.docNames);
+        FileOutputStream fout = new FileOutputStream(block.infoName);
+        for ( Map.Entry<Integer,String> entry : names.entrySet() ) {
             Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
+            String docInfoEntry = key + ";" + entry.getValue() + ";" + block.docLengths.get(key) + ";" + lengths.euclidean(key) + "\n";
             fout.write( docInfoEntry.getBytes() );
         }
         fout.close();
@@ -236,7 +450,11 @@ public class PersistentScalableHashedIndex implements Index {
     * @throws     IOException  { exception_description }
     */
     private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
+        readDocInfo( INDEXDIR + "/docInfo" );
+    }
+
+    private void readDocInfo( String fileName ) throws IOException {
+        File file = new File( fileName );
         FileReader freader = new FileReader(file);
         try ( BufferedReader br = new BufferedReader(freader) ) {
             String line;
@@ -244,257 +462,1133 @@ public class PersistentScalableHashedIndex implements Index {
                 String[] data = line.split(";");
                 docNames.put( new Integer(data[0]), data[1] );
                 docLengths.put( new Integer(data[0]), new Integer(data[2]) );
+                // Written since the Euclidean lengths were added
+                if ( data.length > 3 ) {
+                    docEuclideanLengths.put( Integer.valueOf(data[0]), Double.valueOf(data[3]) );
+                }
             }
         }
         freader.close();
     }
 
 
+    /**
+     *  A full in-memory block: the postings and document information
+     *  collected since the previous block, and the files it goes to.
+    */
+    static class Block {
+        final HashMap<String,PostingsList> index;
+        final HashMap<Integer,String> docNames;
+        final HashMap<Integer,Integer> docLengths;
+        final int number;
+        final String dictName;
+        final String dataName;
+        final String infoName;
+
+        Block(HashMap<String,PostingsList> index, HashMap<Integer,String> docNames, HashMap<Integer,Integer> docLengths,
+              int number, String dictName, String dataName, String infoName) {
+            this.index = index;
+            this.docNames = docNames;
+            this.docLengths = docLengths;
+            this.number = number;
+            this.dictName = dictName;
+            this.dataName = dataName;
+            this.infoName = infoName;
+        }
+    }
+
+
+    /**
+     *  The lengths of the documents of a block (all postings of a document
+     *  are in the same block), for the docInfo file and for the largest
+     *  scores of the terms of the block. The lengths are those the Searcher
+     *  divides by: a document without a length has length 1, and one
+     *  without a Euclidean length has its number of words.
+    */
+    static class DocLengths {
+        final int first;
+        final float[] words;
+        // As read back from the docInfo file, where they are written as floats
+        final double[] euclidean;
+
+        DocLengths(HashMap<String,PostingsList> index, Map<Integer,Integer> docLengths) {
+            this(docLengths);
+            double[] sumSquares = new double[words.length];
+            for (PostingsList list : index.values()) {
+                for (int i = 0; i < list.size(); ++i) {
+                    int d = list.docID(i) - first;
+                    if (d >= 0 && d < sumSquares.length) {
+                        sumSquares[d] += (double) list.freq(i) * list.freq(i);
+                    }
+                }
+            }
+            for (int d = 0; d < euclidean.length; ++d) {
+                euclidean[d] = Double.valueOf(Float.toString((float) Math.sqrt(sumSquares[d])));
+            }
+        }
+
+        /** The lengths of documents whose Euclidean lengths are already known. */
+        DocLengths(Map<Integer,Integer> docLengths, Map<Integer,Double> euclideanLengths) {
+            this(docLengths);
+            for (Map.Entry<Integer,Double> entry : euclideanLengths.entrySet()) {
+                int d = entry.getKey() - first;
+                if (d >= 0 && d < euclidean.length) {
+                    euclidean[d] = entry.getValue();
+                }
+            }
+        }
+
+        private DocLengths(Map<Integer,Integer> docLengths) {
+            int last = -1;
+            int min = Integer.MAX_VALUE;
+            for (Integer docID : docLengths.keySet()) {
+                min = Math.min(min, docID);
+                last = Math.max(last, docID);
+            }
+            first = last < 0 ? 0 : min;
+            words = new float[last + 1 - first];
+            euclidean = new double[words.length];
+            for (Map.Entry<Integer,Integer> entry : docLengths.entrySet()) {
+                words[entry.getKey() - first] = entry.getValue();
+            }
+        }
+
+        /** The Euclidean length of the term frequency vector of a document. */
+        float euclidean(int docID) {
+            return (float) euclidean[docID - first];
+        }
+
+        /**
+         *  The largest tf/length of the documents of a postings list, by
+         *  number of words and by Euclidean length.
+        */
+        float[] maxScores(PostingsList list) {
+            double byWords = 0;
+            double byEuclidean = 0;
+            for (int i = 0; i < list.size(); ++i) {
+                int d = list.docID(i) - first;
+                double w = d >= 0 && d < words.length && words[d] > 0 ? words[d] : 1;
+                double e = d >= 0 && d < words.length && euclidean[d] > 0 ? euclidean[d] : w;
+                byWords = Math.max(byWords, list.freq(i) / w);
+                byEuclidean = Math.max(byEuclidean, list.freq(i) / e);
+            }
+            // Rounded up, so that they stay bounds
+            return new float[] { Math.nextUp((float) byWords), Math.nextUp((float) byEuclidean) };
+        }
+    }
+
+
     /**
      *  Write the index to files.
     */
     public void writeIndex() {
+        writeBlock(new Block(index, docNames, docLengths, intermediary_number, blockDictName, blockDataName, foutName));
+    }
+
+
+    /**
+     *  Hands the in-memory block to the flusher thread and starts a new,
+     *  empty one, so that indexing goes on while the block is written. If
+     *  MAX_PENDING_FLUSHES blocks are already waiting to be written, waits
+     *  for one of them first; this bounds the memory held by full blocks.
+    */
+    void flushBlock() {
+        long startTime = System.nanoTime();
+        flushPermits.acquireUninterruptibly();
+        flushStallNanos += System.nanoTime() - startTime;
+
+        Block block = new Block(index, new HashMap<>(docNames), new HashMap<>(docLengths),
+                                intermediary_number, blockDictName, blockDataName, foutName);
+        index = new HashMap<String,PostingsList>();
+        docNames.clear();
+        docLengths.clear();
+        lastFlush = flusher.submit(() -> {
+            try {
+                writeBlock(block);
+            } finally {
+                flushPermits.release();
+            }
+        });
+    }
+
+
+    /**
+     *  Writes a block to its dictionary, data and docInfo files, adds it to
+     *  the segments and records it in the manifest. Blocks are written one
+     *  at a time by the flusher thread, in the order they were filled.
+    */
+    void writeBlock(Block block) {
+        long startTime = System.nanoTime();
         int collisions = 0;
         try {
             // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
-
-            // Write the dictionary and the postings list
-
-            // Sort keyset
-            List<String> keys = new ArrayList<>(index.keySet());
-            Collections.sort(keys);
-            int total_keys = keys.size();
-            int counter = 0;
-            for (String key : keys) {
-                ++counter;
-                if (counter % 1000 == 0) {
-                    System.err.print("\r" + String.format("%d%%", (100*counter)/total_keys));
-                }
+            DocLengths lengths = new DocLengths(block.index, block.docLengths);
+            writeDocInfo(block, lengths);
+
+            // Write the data file header; the records follow it
+            try (RandomAccessFile dictFile = new RandomAccessFile(block.dictName, "rw");
+                 RandomAccessFile data = new RandomAccessFile(block.dataName, "rw")) {
+                data.setLength(0);
+                PostingsCodec.writeHeader(data, PostingsCodec.CURRENT_FORMAT);
+                long ptr = PostingsCodec.HEADER_SIZE;
+                DictionaryWriter dict = new DictionaryWriter(dictFile);
+
+                // Write the dictionary and the postings list
+
+                // Sort keyset
+                List<String> keys = new ArrayList<>(block.index.keySet());
+                Collections.sort(keys);
+                int total_keys = keys.size();
+                int counter = 0;
+                for (String key : keys) {
+                    ++counter;
+                    if (counter % 1000 == 0) {
+                        System.err.print("\r" + String.format("%d%%", (100*counter)/total_keys));
+                    }
 
-                // Find empty slot in dictionary
-                long hash = hash(key);
-                while (entryExists(hash)) {
-                    hash = (hash + 1) % TABLESIZE;
-                    ++collisions;
+                    // Write to dataFile and dictionaryFile
+                    ptr = writeDataAndEntry(data, dict, key, codec.encode(key, block.index.get(key), lengths.maxScores(block.index.get(key))), ptr);
                 }
-
-                // Write to dataFile
-                String data = key + " " + index.get(key).toString() + "\n";
-                int size = writeData(data, free);
-
-                // Write to dictionaryFile
-                Entry entry = new Entry(free, size);
-                writeEntry(entry, hash * ENTRY_SIZE);
-                
-                free += size;
+                dict.close();
+                collisions = dict.collisions;
             }
+            sync(block.dictName, block.dataName, block.infoName);
             System.err.println("\r100%");
         } catch ( IOException e ) {
+            // A partial block must not be merged or recorded as written
             e.printStackTrace();
+            System.err.println("Block " + block.number + " could not be written, its documents are left out");
+            deleteFiles(Arrays.asList(block.dictName, block.dataName, block.infoName));
+            flushNanos += System.nanoTime() - startTime;
+            return;
         }
         System.err.println( collisions + " collisions." );
 
-        merging.put(intermediate_dict.get(intermediate_dict.size()-1), false);
-        Merger m = new Merger();
-        Thread t = new Thread(m);
-        t.start();
-        threads.add(t);
+        // The block holds whole documents, up to the last one given so far
+        for (Map.Entry<Integer,String> entry : block.docNames.entrySet()) {
+            if (entry.getKey() >= flushedDocID) {
+                flushedDocID = entry.getKey() + 1;
+                flushedDocName = entry.getValue();
+            }
+        }
+
+        // The block is complete and can be merged
+        Segment segment = new Segment(block.dictName, block.dataName, block.infoName,
+                                      block.number, block.number, flushedDocID, flushedDocName, false);
+        updateSegments(current -> {
+            List<Segment> next = new ArrayList<>(current);
+            next.add(segment);
+            return next;
+        });
+        writeManifest(Collections.emptyList());
+        ++flushes;
+        flushNanos += System.nanoTime() - startTime;
+        if (tieredMerge) startTierMerges();
     }
 
-    class Merger implements Runnable {
-        String dictionaryFile1;
-        String dictionaryFile2;
-        String dataFile1;
-        String dataFile2;
-        String docInfoFile1;
-        String docInfoFile2;
 
-        public Merger() { }
+    /**
+     *  One block of the index on disk, or several merged ones: its
+     *  dictionary, data and docInfo files, the blocks it holds, and where
+     *  its documents end. Segments are immutable; starting or finishing a
+     *  merge replaces them.
+    */
+    static class Segment {
+        final String dictionary;
+        final String data;
+        final String docInfo;
+        /** The first and last block held. */
+        final int firstBlock;
+        final int lastBlock;
+        /** The docID after the last document, and the name of that document. */
+        final int nextDocID;
+        final String lastDocName;
+        /** True while the block is being merged. */
+        final boolean merging;
+
+        Segment(String dictionary, String data, String docInfo, int firstBlock, int lastBlock,
+                int nextDocID, String lastDocName, boolean merging) {
+            this.dictionary = dictionary;
+            this.data = data;
+            this.docInfo = docInfo;
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.nextDocID = nextDocID;
+            this.lastDocName = lastDocName;
+            this.merging = merging;
+        }
 
-        public void run() {
-            findIndexesToMerge();
+        /**
+         *  The segment merged from a run of segments, with files named
+         *  after the blocks it holds (data3-6, ...).
+        */
+        static Segment merged(List<Segment> run) {
+            Segment first = run.get(0);
+            Segment last = run.get(run.size() - 1);
+            String blocks = first.firstBlock + "-" + last.lastBlock;
+            return new Segment(INDEXDIR + "/" + DICTIONARY_FNAME + blocks, INDEXDIR + "/" + DATA_FNAME + blocks,
+                               INDEXDIR + "/" + DOCINFO_FNAME + blocks, first.firstBlock, last.lastBlock,
+                               last.nextDocID, last.lastDocName, false);
         }
 
-        public void findIndexesToMerge() {
-            for (int i = 0; i < intermediate_dict.size()-1; ++i) {
-                // Only next one is allowed to merge
-                if (!merging.get(intermediate_dict.get(i)) && !merging.get(intermediate_dict.get(i+1))) {
-                    dictionaryFile1 = intermediate_dict.get(i);
-                    dataFile1 = intermediate_data.get(i);
-                    docInfoFile1 = intermediate_info.get(i);
+        Segment withMerging(boolean merging) {
+            return new Segment(dictionary, data, docInfo, firstBlock, lastBlock, nextDocID, lastDocName, merging);
+        }
 
-                    dictionaryFile2 = intermediate_dict.get(i+1);
-                    dataFile2 = intermediate_data.get(i+1);
-                    docInfoFile2 = intermediate_info.get(i+1);
+        /** The files of the segment. */
+        List<String> files() {
+            return Arrays.asList(dictionary, data, docInfo);
+        }
 
-                    merging.put(dictionaryFile1, true);
-                    merging.put(dictionaryFile2, true);
-                    mergeIndexes();
-                    break;
+        /** The size of the data file in bytes. */
+        long size() {
+            return new File(data).length();
+        }
+
+        public String toString() {
+            return new File(data).getName();
+        }
+    }
+
+
+    /**
+     *  Atomically replaces the segment list with update(current). The update
+     *  may be applied more than once if another thread changes the list at
+     *  the same time, so it must not have side effects.
+     *
+     *  @return The new list.
+    */
+    List<Segment> updateSegments(UnaryOperator<List<Segment>> update) {
+        while (true) {
+            List<Segment> current = segments.get();
+            List<Segment> next = Collections.unmodifiableList(update.apply(current));
+            if (segments.compareAndSet(current, next)) return next;
+        }
+    }
+
+
+    /**
+     *  Schedules a background merge for every run of MERGE_FACTOR adjacent
+     *  blocks of similar size (the largest at most MERGE_FACTOR times the
+     *  smallest) that are not being merged. Since blocks are only merged
+     *  with blocks of their own tier, every posting is rewritten about
+     *  log(blocks) times instead of once per block. Runs are disjoint, so
+     *  they can be merged in parallel.
+    */
+    void startTierMerges() {
+        List<List<Segment>> runs = new ArrayList<>();
+        updateSegments(current -> {
+            runs.clear();
+            List<Segment> next = new ArrayList<>(current);
+            int i = 0;
+            while (i + MERGE_FACTOR <= next.size()) {
+                List<Segment> run = next.subList(i, i + MERGE_FACTOR);
+                boolean idle = true;
+                long min = Long.MAX_VALUE, max = 0;
+                for (Segment segment : run) {
+                    idle &= !segment.merging;
+                    min = Math.min(min, segment.size());
+                    max = Math.max(max, segment.size());
+                }
+                if (!idle || max > MERGE_FACTOR * min) {
+                    ++i;
+                    continue;
+                }
+                runs.add(new ArrayList<>(run));
+                for (int j = i; j < i + MERGE_FACTOR; ++j) {
+                    next.set(j, next.get(j).withMerging(true));
                 }
+                i += MERGE_FACTOR;
+            }
+            return next;
+        });
+        for (List<Segment> run : runs) {
+            try {
+                scheduler.submit(() -> {
+                    mergeRun(run, false);
+                    // Merging may have completed a run of the next tier
+                    startTierMerges();
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down; leave the blocks for the final merge
+                release(run);
             }
         }
+    }
+
 
-        public void mergeIndexes() {
-            System.err.println("Merging indexes " + dataFile1 + " and " + dataFile2);
-            
-            // Merge dictionaries and data
-            String merge_dict = INDEXDIR + "/" + "merger_" + dictionaryFile1.split("/")[2] + "_" + dictionaryFile2.split("/")[2];
-            String merge_data = INDEXDIR + "/" + "merger_" + dataFile1.split("/")[2] + "_" + dataFile2.split("/")[2];
+    /**
+     *  Merges the remaining blocks into the final index with one k-way merge.
+     *  If the tiered policy has already merged them all, the segment left
+     *  gets the dictionary that intermediate merges leave out.
+    */
+    void finalMerge() {
+        List<Segment> all = segments.get();
+        if (all.size() == 1) {
             try {
-                FileReader fr1 = new FileReader(dataFile1);
-                FileReader fr2 = new FileReader(dataFile2);
-                BufferedReader br1 = new BufferedReader(fr1);
-                BufferedReader br2 = new BufferedReader(fr2);
-                RandomAccessFile dict = new RandomAccessFile(merge_dict, "rw");
-                RandomAccessFile data = new RandomAccessFile(merge_data, "rw");
-                long local_free = 0;
-
-                String line1 = br1.readLine();
-                String line2 = br2.readLine();
-                while (line1 != null && line2 != null) {
-                    String[] arr1 = line1.split(" ");
-                    String[] arr2 = line2.split(" ");
-                    String term1 = arr1[0];
-                    String term2 = arr2[0];
-
-                    String dataString = "";
-                    if (term1.compareTo(term2) == 0) {
-                        // Terms are the same, merge
-                        dataString = line1 + "," + arr2[1];
-                        line1 = br1.readLine();
-                        line2 = br2.readLine();
-                    } else if (term1.compareTo(term2) < 0) {
-                        // term1 comes before term2
-                        dataString = line1;
-                        line1 = br1.readLine();
-                    } else if (term1.compareTo(term2) > 0) {
-                        // term2 comes before term1
-                        dataString = line2;
-                        line2 = br2.readLine();
+                rewriteDictionary(all.get(0));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (all.size() < 2) return;
+        updateSegments(current -> {
+            List<Segment> next = new ArrayList<>();
+            for (Segment segment : current) next.add(segment.withMerging(true));
+            return next;
+        });
+        mergeRun(all, true);
+    }
+
+
+    /**
+     *  Merges a run of adjacent blocks, given in docID order, into new files
+     *  named after the blocks. The blocks are removed once the manifest
+     *  records the merged segment instead of them, so that a checkpoint
+     *  never refers to missing files. If the merge fails or is interrupted,
+     *  the blocks are left as they were.
+     *
+     *  Only the final merge writes the dictionary asked for; mergeBlocks
+     *  reads nothing but the data files, so an intermediate merge writes a
+     *  small sorted block dictionary instead of a whole hash table.
+    */
+    void mergeRun(List<Segment> run, boolean last) {
+        System.err.println("Merging " + run.size() + " blocks: " + run);
+        long startTime = System.nanoTime();
+        Segment first = run.get(0);
+        Segment merged = Segment.merged(run);
+        long written = 0;
+        try {
+            List<String> dataFiles = new ArrayList<>();
+            for (Segment segment : run) dataFiles.add(segment.data);
+            written = mergeBlocks(dataFiles, merged.dictionary, merged.data, sortedDictionary || !last);
+
+            // The docInfo files are in docID order, and so is the run
+            try (FileOutputStream fout = new FileOutputStream(merged.docInfo)) {
+                for (Segment segment : run) {
+                    Files.copy(Paths.get(segment.docInfo), fout);
+                }
+            }
+            sync(merged.dictionary, merged.data, merged.docInfo);
+        } catch (IOException e) {
+            if (!(e instanceof InterruptedIOException)) e.printStackTrace();
+            deleteFiles(merged.files());
+            release(run);
+            System.err.println("Merge of " + run + " abandoned");
+            return;
+        }
+
+        // Replace the run by the merged block
+        updateSegments(current -> {
+            List<Segment> next = new ArrayList<>();
+            for (Segment segment : current) {
+                if (segment.dictionary.equals(first.dictionary)) {
+                    next.add(merged);
+                } else if (!contains(run, segment)) {
+                    next.add(segment);
+                }
+            }
+            return next;
+        });
+        writeManifest(Collections.emptyList());
+        for (Segment segment : run) {
+            deleteFiles(segment.files());
+        }
+        merges.incrementAndGet();
+        mergedBlocks.addAndGet(run.size());
+        mergeNanos.addAndGet(System.nanoTime() - startTime);
+        mergeBytesWritten.addAndGet(written);
+        System.err.println("Merge complete");
+    }
+
+
+    /** Marks the blocks of a run as no longer being merged. */
+    private void release(List<Segment> run) {
+        updateSegments(current -> {
+            List<Segment> next = new ArrayList<>();
+            for (Segment segment : current) {
+                next.add(contains(run, segment) ? segment.withMerging(false) : segment);
+            }
+            return next;
+        });
+    }
+
+
+    private static boolean contains(List<Segment> run, Segment segment) {
+        for (Segment s : run) {
+            if (s.dictionary.equals(segment.dictionary)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     *  Cancels the running and queued merges, for example when indexing is
+     *  aborted or the program exits, and waits for the running ones to
+     *  delete their unfinished output. The blocks that were being merged
+     *  stay on disk unchanged.
+    */
+    public void cancelMerges() {
+        scheduler.cancel();
+        try {
+            if (!scheduler.awaitTermination(MERGE_STOP_MILLIS)) {
+                System.err.println("Warning: a merge did not stop, its files are removed when indexing resumes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     *  One block being read by mergeBlocks: its current record and term.
+    */
+    static class BlockReader implements Comparable<BlockReader> {
+        final int block;
+        final DataInputStream in;
+        byte[] record;
+        String term;
+
+        BlockReader(int block, DataInputStream in) {
+            this.block = block;
+            this.in = in;
+        }
+
+        /** Reads the next record; returns false at the end of the block. */
+        boolean next() throws IOException {
+            record = PostingsCodec.readRecord(in);
+            term = record == null ? null : PostingsCodec.decodeTerm(ByteBuffer.wrap(record));
+            return record != null;
+        }
+
+        /** The largest scores of the current record. */
+        float[] maxScores() {
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            PostingsCodec.decodeTerm(buf);
+            return PostingsCodec.decodeMaxScores(buf, PostingsCodec.CURRENT_FORMAT);
+        }
+
+        /** Readers are ordered by term, and blocks with the same term by docID. */
+        public int compareTo(BlockReader other) {
+            int c = term.compareTo(other.term);
+            return c != 0 ? c : Integer.compare(block, other.block);
+        }
+    }
+
+
+    /**
+     *  Merges the data files of several blocks, given in docID order, into a
+     *  new dictionary and data file in one sequential pass. A priority queue
+     *  keeps the block readers ordered by their current term; a term found
+     *  in only one block is copied as it is, otherwise the postings lists
+     *  are concatenated in block order and encoded again.
+     *
+     *  @param sorted Write a sorted block dictionary rather than a hash table.
+     *  @return The number of bytes written (data and dictionary).
+    */
+    long mergeBlocks(List<String> dataFiles, String mergeDict, String mergeData, boolean sorted) throws IOException {
+        List<BlockReader> readers = new ArrayList<>();
+        RandomAccessFile dictFile = null;
+        RandomAccessFile data = null;
+        try {
+            PriorityQueue<BlockReader> queue = new PriorityQueue<>();
+            for (int i = 0; i < dataFiles.size(); ++i) {
+                BlockReader reader = new BlockReader(i, openRecords(dataFiles.get(i)));
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.in.close();
+                }
+            }
+            dictFile = new RandomAccessFile(mergeDict, "rw");
+            DictionaryWriter dict = new DictionaryWriter(dictFile, sorted);
+            data = new RandomAccessFile(mergeData, "rw");
+            data.setLength(0);
+            PostingsCodec mergeCodec = new PostingsCodec();
+            PostingsCodec.writeHeader(data, PostingsCodec.CURRENT_FORMAT);
+            long local_free = PostingsCodec.HEADER_SIZE;
+
+            long records = 0;
+            while (!queue.isEmpty()) {
+                if (++records % 1024 == 0 && Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Merge cancelled");
+                }
+                BlockReader first = queue.poll();
+                String term = first.term;
+                byte[] record = first.record;
+                if (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    // All docIDs of a later block come after those of an earlier one
+                    PostingsList list = PostingsCodec.decode(record, term, PostingsCodec.CURRENT_FORMAT);
+                    float[] maxScores = first.maxScores();
+                    while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                        BlockReader other = queue.poll();
+                        list.addAll(PostingsCodec.decode(other.record, term, PostingsCodec.CURRENT_FORMAT));
+                        float[] otherScores = other.maxScores();
+                        maxScores[0] = Math.max(maxScores[0], otherScores[0]);
+                        maxScores[1] = Math.max(maxScores[1], otherScores[1]);
+                        advance(queue, other);
                     }
-                    dataString += "\n";
-                    local_free = writeDataAndEntry(data, dict, dataString, local_free);
+                    record = mergeCodec.encode(term, list, maxScores);
                 }
-                // Read remainder
-                while ((line1 = br1.readLine()) != null) {
-                    String dataString = line1 + "\n";
-                    local_free = writeDataAndEntry(data, dict, dataString, local_free);
+                local_free = writeDataAndEntry(data, dict, term, record, local_free);
+                advance(queue, first);
+            }
+            dict.close();
+            return local_free + dictFile.length();
+        } finally {
+            // Also on failure, so that mergeRun can delete the partial files
+            for (BlockReader reader : readers) reader.in.close();
+            if (dictFile != null) dictFile.close();
+            if (data != null) data.close();
+        }
+    }
+
+
+    /**
+     *  Writes the dictionary asked for (see sortedDictionary) for a segment
+     *  whose dictionary is of the other kind, from its data file. The new
+     *  dictionary replaces the old one only once it is complete.
+    */
+    void rewriteDictionary(Segment segment) throws IOException {
+        try (RandomAccessFile old = new RandomAccessFile(segment.dictionary, "r")) {
+            if (BlockTermDictionary.isBlockDictionary(old) == sortedDictionary) return;
+        }
+        String tmpName = segment.dictionary + ".tmp";
+        try (RandomAccessFile dictFile = new RandomAccessFile(tmpName, "rw");
+             DataInputStream in = openRecords(segment.data)) {
+            DictionaryWriter dict = new DictionaryWriter(dictFile);
+            long ptr = PostingsCodec.HEADER_SIZE;
+            byte[] record;
+            while ((record = PostingsCodec.readRecord(in)) != null) {
+                dict.add(PostingsCodec.decodeTerm(ByteBuffer.wrap(record)), ptr, record.length);
+                ptr += record.length;
+            }
+            dict.close();
+        } catch (IOException e) {
+            deleteFiles(Collections.singletonList(tmpName));
+            throw e;
+        }
+        sync(tmpName);
+        Files.move(Paths.get(tmpName), Paths.get(segment.dictionary), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    /** Moves a block reader to its next record and puts it back in the queue. */
+    private void advance(PriorityQueue<BlockReader> queue, BlockReader reader) throws IOException {
+        if (reader.next()) {
+            queue.add(reader);
+        } else {
+            reader.in.close();
+        }
+    }
+
+
+    /**
+     *  Opens a binary data file for sequential reading of its records.
+    */
+    DataInputStream openRecords(String filePath) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)));
+        if (in.readInt() != PostingsCodec.MAGIC) {
+            in.close();
+            throw new IOException(filePath + " is not a binary data file");
+        }
+        in.skipBytes(PostingsCodec.HEADER_SIZE - 4);
+        return in;
+    }
+
+
+    // ==================================================================
+    //
+    //  Checkpoints.
+
+    /**
+     *  Writes the manifest: the token limit, the directories indexed, and
+     *  the segments on disk (a line "segment;firstBlock;lastBlock;nextDocID;
+     *  dictionary;data;docInfo;lastDocName" each), followed by files to be
+     *  renamed ("move;from;to"). The manifest is written to a temporary file
+     *  that replaces the old one, so it is always complete.
+    */
+    synchronized void writeManifest(List<String[]> moves) {
+        // An interrupted update is not resumed but started again
+        if (updating) return;
+        Path file = Paths.get(INDEXDIR, MANIFEST_FNAME);
+        Path tmp = Paths.get(INDEXDIR, MANIFEST_FNAME + ".tmp");
+        try {
+            try (FileOutputStream fout = new FileOutputStream(tmp.toFile())) {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(fout, StandardCharsets.UTF_8));
+                writer.write("tokenLimit;" + TOKEN_LIMIT + "\n");
+                for (String input : inputs) {
+                    writer.write("input;" + input + "\n");
                 }
-                while ((line2 = br2.readLine()) != null) {
-                    String dataString = line2 + "\n";
-                    local_free = writeDataAndEntry(data, dict, dataString, local_free);
+                for (Segment segment : segments.get()) {
+                    writer.write("segment;" + segment.firstBlock + ";" + segment.lastBlock + ";" + segment.nextDocID + ";" +
+                                 segment.dictionary + ";" + segment.data + ";" + segment.docInfo + ";" + segment.lastDocName + "\n");
                 }
-                fr1.close();
-                fr2.close();
-                br1.close();
-                br2.close();
-                dict.close();
-                data.close();
+                for (String[] move : moves) {
+                    writer.write("move;" + move[0] + ";" + move[1] + "\n");
+                }
+                writer.flush();
+                fout.getFD().sync();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                // Remove both indexes' files from disk
-                deleteFile(dictionaryFile1);
-                deleteFile(dataFile1);
-                deleteFile(dictionaryFile2);
-                deleteFile(dataFile2);
-    
-                // Rename merged files to the first file's names
-                renameFile(merge_dict, dictionaryFile1);
-                renameFile(merge_data, dataFile1);
+
+    /**
+     *  Continues an interrupted indexing of the directories <code>inputs</code>
+     *  from the manifest, if there is one for them: the blocks it records
+     *  are taken as written, files of unfinished blocks and merges are
+     *  removed, and the next block gets the next number. The documents up to
+     *  the returned docID are in the blocks and should not be indexed again
+     *  (the last one is named flushedDocName).
+     *
+     *  @return The docID to continue from, 0 if there is nothing to resume.
+    */
+    public int resume(List<String> inputs) {
+        this.inputs = new ArrayList<>(inputs);
+        // A build replaces the index, and with it the stamps and updates
+        files.clear();
+        deleteFiles(Collections.singletonList(INDEXDIR + "/" + FILES_FNAME));
+        File file = new File(INDEXDIR, MANIFEST_FNAME);
+        if (!file.exists()) return 0;
+        int tokenLimit = TOKEN_LIMIT;
+        List<String> recordedInputs = new ArrayList<>();
+        List<Segment> restored = new ArrayList<>();
+        try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] data = line.split(";", 8);
+                if (data[0].equals("tokenLimit")) {
+                    tokenLimit = Integer.parseInt(data[1]);
+                } else if (data[0].equals("input")) {
+                    recordedInputs.add(data[1]);
+                } else if (data[0].equals("segment")) {
+                    restored.add(new Segment(data[4], data[5], data[6], Integer.parseInt(data[1]), Integer.parseInt(data[2]),
+                                             Integer.parseInt(data[3]), data[7], false));
+                } else if (data[0].equals("move")) {
+                    // Renames that were under way; those done are gone
+                    if (new File(data[1]).exists()) {
+                        Files.move(Paths.get(data[1]), Paths.get(data[2]), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warning: cannot read " + file + ", indexing from the start: " + e);
+            return 0;
+        }
+        if (!recordedInputs.equals(this.inputs)) {
+            System.err.println("Warning: " + file + " is for " + recordedInputs + ", indexing from the start");
+            return 0;
+        }
+        for (Segment segment : restored) {
+            for (String name : segment.files()) {
+                if (!new File(name).exists()) {
+                    System.err.println("Warning: " + name + " is missing, indexing from the start");
+                    return 0;
+                }
+            }
+        }
+        if (restored.isEmpty()) return 0;
+
+        Segment last = restored.get(restored.size() - 1);
+        TOKEN_LIMIT = tokenLimit;
+        segments.set(Collections.unmodifiableList(restored));
+        intermediary_number = last.lastBlock;
+        createNewIntermediaryFiles();
+        flushedDocID = last.nextDocID;
+        flushedDocName = last.lastDocName;
+        previous_docID = flushedDocID - 1;
+        token_count = 0;
+        index.clear();
+        docNames.clear();
+        docLengths.clear();
+        docEuclideanLengths.clear();
+        deleteUnreferencedFiles();
+        writeManifest(Collections.emptyList());
+        System.err.println("Resuming after " + flushedDocID + " documents in " + (last.lastBlock + 1) + " blocks");
+        if (tieredMerge) startTierMerges();
+        return flushedDocID;
+    }
+
+
+    /**
+     *  Removes the files of blocks and merges that are not in the segments:
+     *  those of a block or merge that was being written when indexing was
+     *  interrupted, and of blocks already merged.
+    */
+    private void deleteUnreferencedFiles() {
+        Set<String> referenced = new HashSet<>();
+        if (updating) {
+            referenced.addAll(Arrays.asList(DICTIONARY_FNAME, DATA_FNAME, DOCINFO_FNAME));
+        }
+        for (Segment segment : segments.get()) {
+            for (String name : segment.files()) {
+                referenced.add(new File(name).getName());
+            }
+        }
+        String[] names = new File(INDEXDIR).list();
+        if (names == null) return;
+        for (String name : names) {
+            if (name.matches("(" + DICTIONARY_FNAME + "|" + DATA_FNAME + "|" + DOCINFO_FNAME + ")([0-9]+(-[0-9]+)?)?(\\.tmp)?|merger_.*")
+                && !referenced.contains(name)) {
+                deleteFiles(Collections.singletonList(INDEXDIR + "/" + name));
+            }
+        }
+    }
+
+
+    /**
+     *  Gives the single segment left after the final merge the names of the
+     *  index files and removes the manifest. The renames are recorded in
+     *  the manifest first, so that resume() can finish them. If the final
+     *  merge failed, the manifest is kept, so that indexing again resumes
+     *  from the blocks.
+     *
+     *  @return False if the index is not complete.
+    */
+    private boolean finishIndex() {
+        List<Segment> all = segments.get();
+        if (all.size() > 1) {
+            System.err.println("Warning: the blocks were not merged, index again to resume from them");
+            return false;
+        }
+        if (all.size() == 1) {
+            Segment segment = all.get(0);
+            Segment index = new Segment(INDEXDIR + "/" + DICTIONARY_FNAME, INDEXDIR + "/" + DATA_FNAME,
+                                        INDEXDIR + "/" + DOCINFO_FNAME, segment.firstBlock, segment.lastBlock,
+                                        segment.nextDocID, segment.lastDocName, false);
+            if (!segment.data.equals(index.data)) {
+                List<String[]> moves = new ArrayList<>();
+                for (int i = 0; i < 3; ++i) {
+                    moves.add(new String[] { segment.files().get(i), index.files().get(i) });
+                }
+                segments.set(Collections.singletonList(index));
+                writeManifest(moves);
+                try {
+                    for (String[] move : moves) {
+                        Files.move(Paths.get(move[0]), Paths.get(move[1]), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        }
+        deleteFiles(Collections.singletonList(INDEXDIR + "/" + MANIFEST_FNAME));
+        return true;
+    }
+
+
+    // ==================================================================
+    //
+    //  Updates.
+
+    /**
+     *  Starts an update of the index on disk: the documents given from now
+     *  on are written to blocks numbered after those of earlier updates,
+     *  and cleanup() merges them into a new segment instead of replacing
+     *  the index. Files left by an interrupted update are removed.
+     *
+     *  @return False if there is no complete index with stamps to update,
+     *          in which case the index should be built.
+    */
+    public boolean beginUpdate() {
+        if (files.size() == 0 || new File(INDEXDIR, MANIFEST_FNAME).exists()) {
+            System.err.println("Warning: there is no complete index to update, indexing everything");
+            return false;
+        }
+        updating = true;
+        // A hash table dictionary has the same size however few terms it
+        // holds; a segment of a few changed documents has a small one
+        sortedDictionary = true;
+        files.beginUpdate();
+        index.clear();
+        docNames.clear();
+        docLengths.clear();
+        docEuclideanLengths.clear();
+        intermediary_number = files.nextBlock - 1;
+        createNewIntermediaryFiles();
+        deleteUnreferencedFiles();
+        return true;
+    }
+
+
+    /**
+     *  Ends an update: gives the segment merged from its blocks the name of
+     *  an update segment (data_3, ...), marks the documents that changed or
+     *  are gone as deleted, and saves the stamps, which makes the update
+     *  take effect.
+    */
+    private void finishUpdate() {
+        List<Segment> all = segments.get();
+        if (all.size() > 1) {
+            System.err.println("Warning: the blocks of the update were not merged, the index is left as it was");
+            updating = false;
+            return;
+        }
+        if (all.size() == 1) {
+            Segment segment = all.get(0);
+            String[] names = new String[3];
+            try {
+                for (int i = 0; i < 3; ++i) {
+                    String name = segment.files().get(i);
+                    names[i] = name.replaceFirst("[0-9]+(-[0-9]+)?$", "_" + segment.firstBlock);
+                    Files.move(Paths.get(name), Paths.get(names[i]), StandardCopyOption.REPLACE_EXISTING);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
+                return;
             }
-            
-            // Merge docInfo files
+            files.segments.add(names);
+            files.nextBlock = segment.lastBlock + 1;
+            files.nextDocID = Math.max(files.nextDocID, segment.nextDocID);
+        }
+        int deleted = files.endUpdate();
+        try {
+            files.save(new File(INDEXDIR, FILES_FNAME));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        updating = false;
+        System.err.println("Update: " + files.size() + " documents, " + deleted + " replaced or removed, " +
+                           files.segments.size() + " update segments");
+    }
+
+
+    /**
+     *  Reads the stamps of the index, opens the segments added by updates
+     *  and adds their documents, and leaves out the deleted documents.
+    */
+    private void openUpdates() {
+        for (PersistentScalableHashedIndex update : updates) {
+            update.close();
+        }
+        updates = new ArrayList<>();
+        try {
+            files = FileManifest.load(new File(INDEXDIR, FILES_FNAME));
+        } catch (IOException e) {
+            System.err.println("Warning: " + e.getMessage());
+            files = new FileManifest();
+        }
+        for (String[] segment : files.segments) {
+            updates.add(new PersistentScalableHashedIndex(segment[0], segment[1]));
             try {
-                BufferedReader br = new BufferedReader(new FileReader(docInfoFile2));
-                BufferedWriter bw = new BufferedWriter(new FileWriter(docInfoFile1, true));
-                String line;
-                while ((line = br.readLine()) != null) {
-                    bw.write(line);
-                    bw.newLine();
+                readDocInfo(segment[2]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (int docID = files.deleted.nextSetBit(0); docID >= 0; docID = files.deleted.nextSetBit(docID + 1)) {
+            docNames.remove(docID);
+            docLengths.remove(docID);
+            docEuclideanLengths.remove(docID);
+        }
+    }
+
+
+    /** Closes the files of a segment opened read-only. */
+    private void close() {
+        try {
+            dictionaryFile.close();
+            dataFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     *  Removes the segments of earlier updates, which a build replaces.
+    */
+    private void deleteUpdateFiles() {
+        String[] names = new File(INDEXDIR).list();
+        if (names == null) return;
+        for (String name : names) {
+            if (name.matches("(" + DICTIONARY_FNAME + "|" + DATA_FNAME + "|" + DOCINFO_FNAME + ")_[0-9]+")) {
+                deleteFiles(Collections.singletonList(INDEXDIR + "/" + name));
+            }
+        }
+    }
+
+
+    // ==================================================================
+
+
+    /**
+     *  Returns the terms of the segments on disk, for example to rebuild a
+     *  k-gram index after resume().
+    */
+    public Set<String> segmentTerms() {
+        Set<String> result = new HashSet<>();
+        for (Segment segment : segments.get()) {
+            try (DataInputStream in = openRecords(segment.data)) {
+                byte[] record;
+                while ((record = PostingsCodec.readRecord(in)) != null) {
+                    result.add(PostingsCodec.decodeTerm(ByteBuffer.wrap(record)));
                 }
-                br.close();
-                bw.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
 
-                // Remove second docInfo file
-                deleteFile(docInfoFile2);
+
+    /** Forces the contents of files to the disk. */
+    private static void sync(String... names) throws IOException {
+        for (String name : names) {
+            try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+
+    private static void deleteFiles(List<String> names) {
+        for (String name : names) {
+            try {
+                Files.deleteIfExists(Paths.get(name));
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        }
+    }
+
+
+    // ==================================================================
 
-            // Remove the second file from memory
-            for (int i = 0; i < intermediate_dict.size(); ++i) {
-                if (intermediate_dict.get(i).equals(dictionaryFile2)) {
-                    intermediate_dict.remove(i);
-                    intermediate_data.remove(i);
-                    intermediate_info.remove(i);
-                    break;
+
+    /**
+     *  Rewrites an index written by an older version of the code (text
+     *  records, records without skip entries, largest scores or bitmaps, or a
+     *  dictionary without term fingerprints) in the current format. The old data file is read
+     *  sequentially, so the rewritten data file keeps the terms in sorted
+     *  order.
+    */
+    public void upgradeIndex() {
+        if (format >= PostingsCodec.CURRENT_FORMAT) return;
+        System.err.println("Upgrading index from format " + format + " to " + PostingsCodec.CURRENT_FORMAT + "...");
+        String dictName = INDEXDIR + "/" + DICTIONARY_FNAME;
+        String dataName = INDEXDIR + "/" + DATA_FNAME;
+        String newDictName = dictName + ".upgrade";
+        String newDataName = dataName + ".upgrade";
+        int terms = 0;
+        try {
+            RandomAccessFile dictFile = new RandomAccessFile(newDictName, "rw");
+            DictionaryWriter dict = new DictionaryWriter(dictFile);
+            RandomAccessFile data = new RandomAccessFile(newDataName, "rw");
+            PostingsCodec upgradeCodec = new PostingsCodec();
+            DocLengths lengths = new DocLengths(docLengths, docEuclideanLengths);
+            PostingsCodec.writeHeader(data, PostingsCodec.CURRENT_FORMAT);
+            long local_free = PostingsCodec.HEADER_SIZE;
+            if (format == PostingsCodec.FORMAT_TEXT) {
+                // One "term docID:pos,pos;..." line per term
+                BufferedReader br = new BufferedReader(new FileReader(dataName));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length < 2) continue;
+                    PostingsList list = new PostingsList(fields[1].trim());
+                    byte[] record = upgradeCodec.encode(fields[0], list, lengths.maxScores(list));
+                    local_free = writeDataAndEntry(data, dict, fields[0], record, local_free);
+                    ++terms;
                 }
+                br.close();
+            } else {
+                // Binary records are re-encoded to get skip entries, largest
+                // scores and bitmaps, and the dictionary gets fingerprints
+                DataInputStream in = openRecords(dataName);
+                byte[] record;
+                while ((record = PostingsCodec.readRecord(in)) != null) {
+                    ByteBuffer buf = ByteBuffer.wrap(record);
+                    String term = PostingsCodec.decodeTerm(buf);
+                    if (format < PostingsCodec.FORMAT_BITMAPS) {
+                        PostingsList list = PostingsCodec.decodePostings(buf, format);
+                        record = upgradeCodec.encode(term, list, lengths.maxScores(list));
+                    }
+                    local_free = writeDataAndEntry(data, dict, term, record, local_free);
+                    ++terms;
+                }
+                in.close();
             }
-            merging.put(dictionaryFile1, false);
-            System.err.println("Merge complete");
+            dict.close();
+            dictFile.close();
+            data.close();
 
-            // Repeat and merge again if possible
-            findIndexesToMerge();
+            dictionaryFile.close();
+            dataFile.close();
+            Files.move(Paths.get(newDictName), Paths.get(dictName), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(Paths.get(newDataName), Paths.get(dataName), StandardCopyOption.REPLACE_EXISTING);
+            dictionaryFile = new RandomAccessFile(dictName, "rw");
+            dataFile = new RandomAccessFile(dataName, "rw");
+            detectFormat();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
+        System.err.println("Upgraded " + terms + " terms");
+    }
 
-        public void deleteFile(String filePath) {
-            File f = new File(filePath);
-            String name = f.getName();
-            while (!f.delete()) {
-                System.err.println("Failed to delete " + name + ", Trying again...");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+
+    /**
+     *  Writes the dictionary of a block, a merged index or an upgraded index,
+     *  either as a hash table or (if sortedDictionary is set) as a sorted
+     *  block dictionary. In both cases the terms are added in sorted order.
+    */
+    class DictionaryWriter {
+        RandomAccessFile dict;
+        BlockTermDictionary.Writer blocks = null;
+        int collisions = 0;
+
+        DictionaryWriter(RandomAccessFile dict) throws IOException {
+            this(dict, sortedDictionary);
+        }
+
+        DictionaryWriter(RandomAccessFile dict, boolean sorted) throws IOException {
+            this.dict = dict;
+            if (sorted) {
+                blocks = new BlockTermDictionary.Writer(dict);
+            } else {
+                dict.setLength(0);
             }
-            System.err.println("Deleted " + name);
         }
 
-        public void renameFile(String filePath1, String filePath2) {
-            File file1 = new File(filePath1);
-            File file2 = new File(filePath2);
-            String name1 = file1.getName();
-            String name2 = file2.getName();
-            while (!file1.renameTo(file2)) {
-                System.out.println("Failed to rename " + name1 + " to " + name2 + ", Trying again...");
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        void add(String term, long ptr, int size) throws IOException {
+            if (blocks != null) {
+                blocks.add(term, ptr, size);
+                return;
             }
-            System.out.println("Renamed " + name1 + " to " + name2);
+            // Find empty slot in dictionary
+            long hash = hash(term);
+            while (entryExists(dict, hash)) {
+                hash = (hash + 1) % TABLESIZE;
+                ++collisions;
+            }
+            writeEntry(dict, new Entry(ptr, size, PostingsCodec.fingerprint(term), term.length()), hash * ENTRY_SIZE);
+        }
 
+        /** Finishes the dictionary; the file itself stays open. */
+        void close() throws IOException {
+            if (blocks != null) blocks.close();
         }
     }
 
+
     public long writeDataAndEntry(
-        RandomAccessFile data, RandomAccessFile dict, String str, long ptr
-    ) {
+        RandomAccessFile data, DictionaryWriter dict, String term, byte[] bytes, long ptr
+    ) throws IOException {
         // Write data
-        try {
-            data.seek(ptr);
-            byte[] bytes = str.getBytes();
-            data.write(bytes);
-    
-            // Write entry in dict
-            long hash = hash(str.split(" ")[0]);
-            while (entryExists(dict, hash)) hash = (hash + 1) % TABLESIZE;
-            dict.seek(hash * ENTRY_SIZE);
-            dict.writeLong(ptr);
-            dict.seek(hash * ENTRY_SIZE + 8);
-            dict.writeInt(bytes.length);
-    
-            ptr += bytes.length;
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        return ptr;
+        data.seek(ptr);
+        data.write(bytes);
+
+        // Write entry in dict
+        dict.add(term, ptr, bytes.length);
+
+        return ptr + bytes.length;
     }
 
 
@@ -506,29 +1600,154 @@ public class PersistentScalableHashedIndex implements Index {
     *  if the term is not in the index.
     */
     public PostingsList getPostings( String token ) {
-        //
-        //  REPLACE THE STATEMENT BELOW WITH YOUR CODE
-        //
         long startTime = System.currentTimeMillis();
-        int collisions = 0;
+        PostingsList result = allPostings(token);
+        if (result != null) {
+            System.out.println("Found list for '" + token + "': " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return result;
+    }
+
+
+    /**
+     *  The postings of a term in the index and the updates, without the
+     *  deleted documents, or null.
+    */
+    private PostingsList allPostings( String token ) {
+        if (updates.isEmpty() && files.deleted.isEmpty()) return segmentPostings(token);
+        // The postings of the index and of the updates, without deleted documents
+        PostingsList result = null;
+        for (PersistentScalableHashedIndex segment : segmentsToSearch()) {
+            PostingsList list = segment.segmentPostings(token);
+            if (list == null) continue;
+            if (result == null) result = new PostingsList();
+            for (int i = 0; i < list.size(); ++i) {
+                int docID = list.docID(i);
+                if (files.deleted.get(docID)) continue;
+                result.addDoc(docID);
+                for (int j = 0; j < list.freq(i); ++j) {
+                    result.addPosting(docID, list.position(i, j));
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     *  Returns the postings for a term in this segment only, or null.
+    */
+    PostingsList segmentPostings( String token ) {
+        ByteBuffer record = findRecord(token);
+        return record == null ? null : decodePostings(record);
+    }
+
+
+    /**
+     *  Returns a cursor over the postings for a specific term, or null
+    *  if the term is not in the index. The cursor decodes the record
+    *  (or the mapped data file) as it moves.
+    */
+    public PostingsIterator getPostingsIterator( String token ) {
+        if (updates.isEmpty() && files.deleted.isEmpty()) return segmentPostingsIterator(token);
+        List<PostingsIterator> parts = new ArrayList<>();
+        for (PersistentScalableHashedIndex segment : segmentsToSearch()) {
+            PostingsIterator part = segment.segmentPostingsIterator(token);
+            if (part != null) parts.add(part);
+        }
+        if (parts.isEmpty()) return null;
+        return new SegmentedPostingsIterator(parts.toArray(new PostingsIterator[parts.size()]), files.deleted,
+                                             () -> liveDocs(token));
+    }
+
+
+    /**
+     *  The number of documents of a term in all segments that are not
+     *  deleted. The deleted docIDs and the postings of each segment are
+     *  walked together, each cursor jumping to the next docID of the other.
+    */
+    private int liveDocs(String token) {
+        BitSet deleted = files.deleted;
+        int count = 0;
+        for (PersistentScalableHashedIndex segment : segmentsToSearch()) {
+            PostingsIterator it = segment.segmentPostingsIterator(token);
+            if (it == null) continue;
+            count += it.cost();
+            int d = deleted.nextSetBit(0);
+            while (d >= 0) {
+                int docID = it.advance(d);
+                if (docID == PostingsIterator.NO_MORE_DOCS) break;
+                if (docID == d) {
+                    --count;
+                    ++docID;
+                }
+                d = deleted.nextSetBit(docID);
+            }
+        }
+        return count;
+    }
+
+
+    /** This index followed by the segments added by updates, in docID order. */
+    private List<PersistentScalableHashedIndex> segmentsToSearch() {
+        List<PersistentScalableHashedIndex> result = new ArrayList<>();
+        result.add(this);
+        result.addAll(updates);
+        return result;
+    }
+
+
+    /**
+     *  Returns a cursor over the postings for a term in this segment only,
+    *  or null.
+    */
+    PostingsIterator segmentPostingsIterator( String token ) {
+        ByteBuffer record = findRecord(token);
+        if (record == null) return null;
+        if (format == PostingsCodec.FORMAT_TEXT) {
+            return new ListPostingsIterator(decodePostings(record));
+        }
+        return new EncodedPostingsIterator(record, format);
+    }
+
+
+    /**
+     *  Finds the data record of a term.
+    *
+    *  @return The record positioned just after its term, or null if the
+    *          term is not in the index.
+    */
+    ByteBuffer findRecord( String token ) {
+        lastProbes = 0;
+        lastDataReads = 0;
+        ++lookups;
+
+        ByteBuffer record = terms != null ? findRecordInBlocks(token) : findRecordInHashTable(token);
+        totalProbes += lastProbes;
+        totalDataReads += lastDataReads;
+        return record;
+    }
 
+
+    /**
+     *  Probes the hash table dictionary, starting at the slot of the token.
+    */
+    private ByteBuffer findRecordInHashTable( String token ) {
+        long fingerprint = PostingsCodec.fingerprint(token);
         long hash = hash(token);
-        while (entryExists(hash)) {
-            Entry entry = readEntry(hash * ENTRY_SIZE);
-            String[] data = readData(entry.ptr, entry.size).split(" ");
-            if (data[0].equals(token)) {
-                long startTime2 = System.currentTimeMillis();
-                PostingsList list = new PostingsList(data[1].trim());
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                long elapsedTime2 = System.currentTimeMillis() - startTime2;
-                System.out.println("Found list for '" + token + "': " + elapsedTime + " ms");
-                System.out.println("Collisions: " + collisions);
-                System.out.println("Parsing time: " + elapsedTime2 + " ms");
-                return list;
-            }
-            collisions++;
+        Entry entry;
+        while ((entry = readEntry(hash * entrySize)) != null && (entry.ptr != 0 || entry.size != 0)) {
+            ++lastProbes;
+            // Slots holding another term are skipped without reading the data file
+            if (entry.mayMatch(token, fingerprint)) {
+                ++lastDataReads;
+                ByteBuffer record = readRecord(entry.ptr, entry.size);
+                if (record != null && matchRecord(record, token)) {
+                    return record;
+                }
+            }
             // Try next slot
-            ++hash;
+            hash = (hash + 1) % TABLESIZE;
         }
         
         // No match
@@ -536,6 +1755,82 @@ public class PersistentScalableHashedIndex implements Index {
     }
 
 
+    /**
+     *  Looks the token up in the sorted block dictionary. Only the one block
+     *  that can hold the token is read and the data file is read only if the
+     *  token is found.
+    */
+    private ByteBuffer findRecordInBlocks( String token ) {
+        try {
+            ++lastProbes;
+            BlockTermDictionary.Entry entry = terms.lookup(token);
+            if (entry != null) {
+                ++lastDataReads;
+                ByteBuffer record = readRecord(entry.ptr, entry.size);
+                if (record != null && matchRecord(record, token)) {
+                    return record;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns the terms starting with the given prefix in sorted order, or
+     *  null if the index has a hash table dictionary (which cannot answer
+     *  prefix queries).
+    */
+    public List<String> termsWithPrefix( String prefix ) {
+        if (terms == null) return null;
+        List<String> result = new ArrayList<>();
+        try {
+            for (BlockTermDictionary.Entry entry : terms.prefixScan(prefix)) {
+                result.add(entry.term);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+
+    /**
+     *  Checks that a record belongs to the token. If it does, the record is
+    *  left positioned just after the term.
+    */
+    boolean matchRecord( ByteBuffer record, String token ) {
+        if (format == PostingsCodec.FORMAT_TEXT) {
+            // Old format: "term docID:pos,pos;docID:pos\n"
+            int start = record.position();
+            int end = start;
+            while (end < record.limit() && record.get(end) != ' ') end++;
+            byte[] term = new byte[end - start];
+            record.get(term);
+            if (!new String(term).equals(token)) return false;
+            record.position(Math.min(end + 1, record.limit()));
+            return true;
+        }
+        return PostingsCodec.decodeTerm(record).equals(token);
+    }
+
+
+    /**
+     *  Decodes the postings of a record that has been positioned after its
+    *  term by matchRecord.
+    */
+    PostingsList decodePostings( ByteBuffer record ) {
+        if (format == PostingsCodec.FORMAT_TEXT) {
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            return new PostingsList(new String(bytes).trim());
+        }
+        return PostingsCodec.decodePostings(record, format);
+    }
+
+
     /**
      *  Inserts this token in the main-memory hashtable.
     */
@@ -548,28 +1843,50 @@ public class PersistentScalableHashedIndex implements Index {
         ++token_count;
         if (previous_docID != docID && token_count > TOKEN_LIMIT) {
             System.err.println("Writing block and resetting...");
-            writeIndex();
-
-            index.clear();
-            docNames.clear();
-            docLengths.clear();
-            free = 0;
+            flushBlock();
             createNewIntermediaryFiles();
             token_count = 1;
         }
 
         // If first occurrence of this word
-        if (!index.containsKey(token)) index.put(token, new PostingsList());
+        PostingsList list = index.get(token);
+        if (list == null) {
+            list = new PostingsList();
+            index.put(token, list);
+        }
 
         // Assume in-order insertions, current doc is last doc if previously seen
-        // Doc not previously inserted
-        if (index.get(token).size() == 0 || index.get(token).get(index.get(token).size()-1).docID != docID) index.get(token).insert(new PostingsEntry(docID));
-        // Add position of token
-        index.get(token).get(index.get(token).size()-1).addPosition(offset);
+        list.addPosting(docID, offset);
 
         previous_docID = docID;
     }
 
+    /**
+     *  Inserts the postings of a worker's buffer. As with single tokens, a
+     *  full block is written before the buffer is added, so that a block
+     *  holds whole buffers.
+    */
+    public void insert(PostingsBuffer buffer) {
+        total_tokens += buffer.tokens;
+        if (token_count > TOKEN_LIMIT) {
+            System.err.println("Writing block and resetting...");
+            flushBlock();
+            createNewIntermediaryFiles();
+            token_count = 0;
+        }
+        token_count += buffer.tokens;
+
+        for (Map.Entry<String,PostingsList> e : buffer.postings.entrySet()) {
+            PostingsList list = index.get(e.getKey());
+            if (list == null) {
+                index.put(e.getKey(), e.getValue());
+            } else {
+                list.addAll(e.getValue());
+            }
+        }
+        previous_docID = buffer.firstDocID + buffer.docCount - 1;
+    }
+
     public long hash(String token) {
         long hash = 0;
         for (char c : token.toCharArray()) {
@@ -579,7 +1896,10 @@ public class PersistentScalableHashedIndex implements Index {
     }
 
     public boolean entryExists(long hash) {
-        return entryExists(dictionaryFile, hash);
+        Entry entry = readEntry(hash * entrySize);
+        if (entry == null) return false;
+        if (entry.ptr == 0 && entry.size == 0) return false;
+        return true;
     }
 
     public boolean entryExists(RandomAccessFile dict, long hash) {
@@ -595,7 +1915,12 @@ public class PersistentScalableHashedIndex implements Index {
     */
     public void cleanup() {
         System.err.println("Indexing finished");
-        writeIndex();
+        System.err.println(index.keySet().size() + " unique words" );
+        // After a resume, all documents may be in the blocks already, and
+        // an update may have no new documents at all
+        if (!index.isEmpty() || !docNames.isEmpty() || (segments.get().isEmpty() && !updating)) {
+            flushBlock();
+        }
         try {
             dictionaryFile.close();
             dataFile.close();
@@ -603,31 +1928,58 @@ public class PersistentScalableHashedIndex implements Index {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
-        System.err.println(index.keySet().size() + " unique words" );
         System.err.println(total_tokens + " total tokens");
-        System.err.println("Waiting for all merger-threads to finish...");
-        for (Thread t : threads) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        System.err.println("Waiting for all merges to finish...");
+        try {
+            if (lastFlush != null) lastFlush.get();
+            flusher.shutdown();
+            System.err.println(String.format("%d blocks flushed in %.1f s, indexing waited %.1f s for the flusher",
+                                             flushes, flushNanos / 1e9, flushStallNanos / 1e9));
+            scheduler.awaitAll();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            cancelMerges();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        scheduler.shutdown();
+        finalMerge();
+        System.err.println(String.format("%d merges of %d blocks in %.1f s, %.1f MB written",
+                                         merges.get(), mergedBlocks.get(), mergeNanos.get() / 1e9, mergeBytesWritten.get() / 1e6));
+        if (updating) {
+            finishUpdate();
+        } else {
+            if (finishIndex()) {
+                files.nextDocID = flushedDocID;
+                files.nextBlock = 1;
+                try {
+                    files.save(new File(INDEXDIR, FILES_FNAME));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                deleteUpdateFiles();
             }
         }
 
         try {
-            dictionaryFile = new RandomAccessFile(intermediate_dict.get(0), "rw" );
-            dataFile = new RandomAccessFile(intermediate_data.get(0), "rw" );
+            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
+            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw" );
+            detectFormat();
         } catch ( IOException e ) {
             e.printStackTrace();
         }
 
+        docNames.clear();
+        docLengths.clear();
+        docEuclideanLengths.clear();
         try {
             readDocInfo();
         } catch ( FileNotFoundException e ) {
         } catch ( IOException e ) {
             e.printStackTrace();
         }
+        openUpdates();
 
         System.err.println( "done!" );
     }
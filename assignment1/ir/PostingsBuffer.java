@@ -0,0 +1,70 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.util.HashMap;
+
+
+/*
+ *   The postings of a run of consecutive documents, tokenized by one
+ *   indexing worker.
+ *
+ *   A worker is given its documents and their docIDs up front, so the
+ *   buffer can be filled without looking at the index or at the other
+ *   workers. The buffers are then added to the index in docID order, and
+ *   each postings list of a buffer is simply appended to the one in the
+ *   index.
+ */
+public class PostingsBuffer {
+
+    /** The postings of the buffered documents. */
+    final HashMap<String,PostingsList> postings = new HashMap<String,PostingsList>();
+
+    /** The names of the buffered documents. */
+    final HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+
+    /** The lengths of the buffered documents. */
+    final HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+
+    /** The first docID of the run. */
+    final int firstDocID;
+
+    /** The number of docIDs in the run. */
+    final int docCount;
+
+    /** The number of tokens in the buffer. */
+    int tokens = 0;
+
+
+    public PostingsBuffer( int firstDocID, int docCount ) {
+        this.firstDocID = firstDocID;
+        this.docCount = docCount;
+    }
+
+
+    /**
+     *  Adds an occurrence of a token. The documents of the run are
+     *  tokenized one after the other, in docID order.
+     */
+    public void insert( String token, int docID, int offset ) {
+        PostingsList list = postings.get( token );
+        if ( list == null ) {
+            list = new PostingsList();
+            postings.put( token, list );
+        }
+        list.addPosting( docID, offset );
+        tokens++;
+    }
+
+
+    /** Records the name and length of a tokenized document. */
+    public void addDocument( int docID, String name, int length ) {
+        docNames.put( docID, name );
+        docLengths.put( docID, length );
+    }
+}
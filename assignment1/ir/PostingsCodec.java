@@ -0,0 +1,507 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/*
+ *   Binary encoding of the postings lists stored in the data file of a
+ *   persistent index.
+ *
+ *   A data file starts with a small header (a magic number and a format
+ *   version), followed by one record per term:
+ *
+ *      varint termLength, term (UTF-8), varint df, varint payloadLength, payload
+ *
+ *   The payload holds, for every document, the gap to the previous docID,
+ *   the term frequency and the gaps between the positions, all encoded as
+ *   variable-length integers (7 bits per byte, high bit set on all but the
+ *   last byte).
+ *
+ *   From FORMAT_SKIPS on, the payload starts with a skip section:
+ *
+ *      varint skipLength, skip entries (skipLength bytes), documents
+ *
+ *   A postings list with df documents has (df-1)/SKIP_INTERVAL skip
+ *   entries. Entry k (counting from 1) holds the docID of document
+ *   k*SKIP_INTERVAL-1 and the offset of document k*SKIP_INTERVAL from the
+ *   start of the documents, both as gaps to the previous entry, so that a
+ *   reader can jump to any multiple of SKIP_INTERVAL without decoding the
+ *   documents before it.
+ *
+ *   From FORMAT_MAX_SCORES on, the payload starts with the largest score
+ *   the term can give a document, before its idf: the largest tf/length of
+ *   the documents, as two floats (4 bytes each), one with the number of
+ *   words of the document as its length and one with the Euclidean length
+ *   of its term frequency vector. Ranked queries use them to skip the
+ *   documents that cannot be among the best. A bound that is not known is
+ *   written as infinity.
+ *
+ *   From FORMAT_BITMAPS on, the largest scores are followed by the
+ *   documents of the term as a DocBitmap, if it has at least BITMAP_MIN_DF
+ *   of them, so that intersections can use the term without reading its
+ *   positions:
+ *
+ *      maxScores, varint bitmapLength, bitmap (bitmapLength bytes, or
+ *      none), skip section, documents
+ *
+ *   Data files written before this format existed have no header and hold
+ *   one "term docID:pos,pos;..." line per term; they are reported as
+ *   FORMAT_TEXT so that the indexes can still read them.
+ */
+public class PostingsCodec {
+
+    /** The first four bytes of a binary data file ("IRPB"). */
+    public static final int MAGIC = 0x49525042;
+
+    /** The old line-based text format (no header). */
+    public static final byte FORMAT_TEXT = 0;
+
+    /** Delta-gap varint records. */
+    public static final byte FORMAT_BINARY = 1;
+
+    /**
+     *  Same records as FORMAT_BINARY, but the dictionary entries of the
+     *  index also carry a fingerprint and the length of their term.
+     */
+    public static final byte FORMAT_FINGERPRINTS = 2;
+
+    /** Same as FORMAT_FINGERPRINTS, with skip entries in front of the documents. */
+    public static final byte FORMAT_SKIPS = 3;
+
+    /** Same as FORMAT_SKIPS, with the largest scores of the term in front of the skip entries. */
+    public static final byte FORMAT_MAX_SCORES = 4;
+
+    /** Same as FORMAT_MAX_SCORES, with a bitmap of the documents of common terms. */
+    public static final byte FORMAT_BITMAPS = 5;
+
+    /** The newest format. */
+    public static final byte CURRENT_FORMAT = FORMAT_BITMAPS;
+
+    /** Terms with at least this many documents get a bitmap of them. */
+    public static final int BITMAP_MIN_DF = 4096;
+
+    /** Size of the largest scores in a record. */
+    public static final int MAX_SCORES_SIZE = 8;
+
+    /** The largest scores written when they are not known. */
+    public static final float[] UNKNOWN_MAX_SCORES = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+
+    /** Size of the data file header: magic, version and three reserved bytes. */
+    public static final int HEADER_SIZE = 8;
+
+    /** Number of documents between two skip entries. */
+    public static final int SKIP_INTERVAL = 64;
+
+    /** The format of the records written by encode. */
+    private final byte format;
+
+    /** Scratch space for the payload, reused between calls to encode. */
+    private byte[] payload = new byte[1024];
+    private int payloadLength = 0;
+
+    /** Scratch space for the skip entries. */
+    private byte[] skips = new byte[64];
+
+    /** Scratch space for the whole record. */
+    private byte[] record = new byte[1024];
+    private int recordLength = 0;
+
+
+    /**
+     *  Creates a codec that writes records in the current format.
+     */
+    public PostingsCodec() {
+        this( CURRENT_FORMAT );
+    }
+
+
+    /**
+     *  Creates a codec that writes records in the given (binary) format.
+     */
+    public PostingsCodec( byte format ) {
+        this.format = format;
+    }
+
+
+    // ==================================================================
+    //
+    //  Header
+
+
+    /**
+     *  Writes the data file header at the start of the file.
+     */
+    public static void writeHeader( RandomAccessFile file, byte format ) throws IOException {
+        file.seek( 0 );
+        file.write( header( format ));
+    }
+
+
+    /**
+     *  Returns the header bytes for the given format.
+     */
+    public static byte[] header( byte format ) {
+        return ByteBuffer.allocate( HEADER_SIZE ).putInt( MAGIC ).put( format ).array();
+    }
+
+
+    /**
+     *  Reads the format version of a data file. Files that do not start
+     *  with the magic number (including empty files) are text files.
+     */
+    public static byte readFormat( RandomAccessFile file ) throws IOException {
+        if ( file.length() < HEADER_SIZE ) {
+            return FORMAT_TEXT;
+        }
+        file.seek( 0 );
+        if ( file.readInt() != MAGIC ) {
+            return FORMAT_TEXT;
+        }
+        return file.readByte();
+    }
+
+
+    // ==================================================================
+    //
+    //  Encoding
+
+
+    /**
+     *  Encodes a term and its postings list as one data file record, without
+     *  known largest scores.
+     *
+     *  @return A fresh array holding exactly the record bytes.
+     */
+    public byte[] encode( String term, PostingsList postings ) {
+        return encode( term, postings, UNKNOWN_MAX_SCORES );
+    }
+
+
+    /**
+     *  Encodes a term, its postings list and its largest scores (by number
+     *  of words and by Euclidean length, see the class comment) as one data
+     *  file record.
+     *
+     *  @return A fresh array holding exactly the record bytes.
+     */
+    public byte[] encode( String term, PostingsList postings, float[] maxScores ) {
+        boolean withMaxScores = format >= FORMAT_MAX_SCORES;
+        boolean withBitmap = format >= FORMAT_BITMAPS;
+        boolean withSkips = format >= FORMAT_SKIPS;
+        payloadLength = 0;
+        int skipLength = 0;
+        int lastDocID = 0;
+        int lastSkipDocID = 0;
+        int lastSkipOffset = 0;
+        for ( int i = 0; i < postings.size(); i++ ) {
+            int docID = postings.docID( i );
+            if ( withSkips && i > 0 && i % SKIP_INTERVAL == 0 ) {
+                skips = ensureCapacity( skips, skipLength + 10 );
+                skipLength = putVarInt( skips, skipLength, lastDocID - lastSkipDocID );
+                skipLength = putVarInt( skips, skipLength, payloadLength - lastSkipOffset );
+                lastSkipDocID = lastDocID;
+                lastSkipOffset = payloadLength;
+            }
+            int freq = postings.freq( i );
+            payloadLength = writeVarInt( docID - lastDocID, payloadLength );
+            payloadLength = writeVarInt( freq, payloadLength );
+            int lastPosition = 0;
+            for ( int j = 0; j < freq; j++ ) {
+                int position = postings.position( i, j );
+                payloadLength = writeVarInt( position - lastPosition, payloadLength );
+                lastPosition = position;
+            }
+            lastDocID = docID;
+        }
+
+        byte[] termBytes = term.getBytes( StandardCharsets.UTF_8 );
+        DocBitmap bitmap = withBitmap && postings.size() >= BITMAP_MIN_DF ? DocBitmap.of( postings ) : null;
+        int bitmapLength = bitmap == null ? 0 : bitmap.serializedSize();
+        int skipSectionLength = ( withMaxScores ? MAX_SCORES_SIZE : 0 ) +
+            ( withBitmap ? varIntLength( bitmapLength ) + bitmapLength : 0 ) +
+            ( withSkips ? varIntLength( skipLength ) + skipLength : 0 );
+        record = ensureCapacity( record, termBytes.length + skipSectionLength + payloadLength + 15 );
+        recordLength = 0;
+        recordLength = putVarInt( record, recordLength, termBytes.length );
+        System.arraycopy( termBytes, 0, record, recordLength, termBytes.length );
+        recordLength += termBytes.length;
+        recordLength = putVarInt( record, recordLength, postings.size() );
+        recordLength = putVarInt( record, recordLength, skipSectionLength + payloadLength );
+        if ( withMaxScores ) {
+            recordLength = putFloat( record, recordLength, maxScores[0] );
+            recordLength = putFloat( record, recordLength, maxScores[1] );
+        }
+        if ( withBitmap ) {
+            recordLength = putVarInt( record, recordLength, bitmapLength );
+            if ( bitmap != null ) {
+                bitmap.write( ByteBuffer.wrap( record, recordLength, bitmapLength ));
+                recordLength += bitmapLength;
+            }
+        }
+        if ( withSkips ) {
+            recordLength = putVarInt( record, recordLength, skipLength );
+            System.arraycopy( skips, 0, record, recordLength, skipLength );
+            recordLength += skipLength;
+        }
+        System.arraycopy( payload, 0, record, recordLength, payloadLength );
+        recordLength += payloadLength;
+
+        byte[] result = new byte[recordLength];
+        System.arraycopy( record, 0, result, 0, recordLength );
+        return result;
+    }
+
+
+    /**
+     *  Writes a varint to the payload scratch buffer and returns the new length.
+     */
+    private int writeVarInt( int value, int at ) {
+        payload = ensureCapacity( payload, at + 5 );
+        return putVarInt( payload, at, value );
+    }
+
+
+    /**
+     *  Writes a varint to the array, which must have room for it, and
+     *  returns the position after it.
+     */
+    private static int putVarInt( byte[] bytes, int at, int value ) {
+        while (( value & ~0x7F ) != 0 ) {
+            bytes[at++] = (byte) (( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+        bytes[at++] = (byte) value;
+        return at;
+    }
+
+
+    /**
+     *  Writes a float (big-endian) to the array and returns the position
+     *  after it.
+     */
+    private static int putFloat( byte[] bytes, int at, float value ) {
+        int bits = Float.floatToIntBits( value );
+        for ( int shift = 24; shift >= 0; shift -= 8 ) {
+            bytes[at++] = (byte) ( bits >>> shift );
+        }
+        return at;
+    }
+
+
+    /**
+     *  Writes a varint to a buffer.
+     */
+    static void putVarInt( ByteBuffer buf, int value ) {
+        while (( value & ~0x7F ) != 0 ) {
+            buf.put( (byte) (( value & 0x7F ) | 0x80 ));
+            value >>>= 7;
+        }
+        buf.put( (byte) value );
+    }
+
+
+    /** The number of bytes needed to encode the value as a varint. */
+    private static int varIntLength( int value ) {
+        int length = 1;
+        while (( value & ~0x7F ) != 0 ) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+
+    private static byte[] ensureCapacity( byte[] bytes, int capacity ) {
+        if ( capacity > bytes.length ) {
+            return java.util.Arrays.copyOf( bytes, Math.max( 2*bytes.length, capacity ));
+        }
+        return bytes;
+    }
+
+
+    // ==================================================================
+    //
+    //  Decoding
+
+
+    /**
+     *  Computes the 64-bit fingerprint (FNV-1a over the characters) that
+     *  the dictionary stores for a term. It is independent of the hash that
+     *  picks the dictionary slot, so terms that collide on the slot almost
+     *  never share a fingerprint.
+     */
+    public static long fingerprint( String term ) {
+        long h = 0xcbf29ce484222325L;
+        for ( int i = 0; i < term.length(); i++ ) {
+            h ^= term.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+
+    /**
+     *  Reads a varint from the buffer.
+     */
+    public static int readVarInt( ByteBuffer buf ) {
+        int b = buf.get();
+        int value = b & 0x7F;
+        int shift = 7;
+        while (( b & 0x80 ) != 0 ) {
+            b = buf.get();
+            value |= ( b & 0x7F ) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+
+    /**
+     *  Reads the term at the start of a record. The buffer is left
+     *  positioned after the term.
+     */
+    public static String decodeTerm( ByteBuffer buf ) {
+        int length = readVarInt( buf );
+        String term;
+        if ( buf.hasArray() ) {
+            term = new String( buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8 );
+            buf.position( buf.position() + length );
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get( bytes );
+            term = new String( bytes, StandardCharsets.UTF_8 );
+        }
+        return term;
+    }
+
+
+    /**
+     *  Decodes the postings list that follows the term of a record written
+     *  in the given format.
+     */
+    public static PostingsList decodePostings( ByteBuffer buf, byte format ) {
+        int df = readVarInt( buf );
+        int payloadLength = readVarInt( buf );
+        if ( format >= FORMAT_MAX_SCORES ) {
+            buf.position( buf.position() + MAX_SCORES_SIZE );
+        }
+        if ( format >= FORMAT_BITMAPS ) {
+            int bitmapLength = readVarInt( buf );
+            buf.position( buf.position() + bitmapLength );
+        }
+        if ( format >= FORMAT_SKIPS ) {
+            // The skip entries are only needed for jumping ahead
+            int skipLength = readVarInt( buf );
+            buf.position( buf.position() + skipLength );
+        }
+        PostingsList list = new PostingsList();
+        int docID = 0;
+        for ( int i = 0; i < df; i++ ) {
+            docID += readVarInt( buf );
+            int tf = readVarInt( buf );
+            int position = 0;
+            for ( int j = 0; j < tf; j++ ) {
+                position += readVarInt( buf );
+                list.addPosting( docID, position );
+            }
+        }
+        return list;
+    }
+
+
+    /**
+     *  Reads the largest scores of a record that has been positioned after
+     *  its term, which is left where it was.
+     *
+     *  @return The largest scores by number of words and by Euclidean
+     *          length, unknown if the format has none.
+     */
+    public static float[] decodeMaxScores( ByteBuffer buf, byte format ) {
+        if ( format < FORMAT_MAX_SCORES ) {
+            return UNKNOWN_MAX_SCORES.clone();
+        }
+        ByteBuffer b = buf.duplicate();
+        readVarInt( b );    // df
+        readVarInt( b );    // payload length
+        return new float[] { b.getFloat(), b.getFloat() };
+    }
+
+
+    /**
+     *  Decodes a whole record, returning its postings list if the record
+     *  belongs to the given term and null otherwise.
+     */
+    public static PostingsList decode( byte[] record, String term, byte format ) {
+        return decode( ByteBuffer.wrap( record ), term, format );
+    }
+
+
+    /**
+     *  Decodes a whole record held in a buffer (for example a slice of a
+     *  memory-mapped data file).
+     */
+    public static PostingsList decode( ByteBuffer buf, String term, byte format ) {
+        if ( !decodeTerm( buf ).equals( term )) {
+            return null;
+        }
+        return decodePostings( buf, format );
+    }
+
+
+    /**
+     *  Reads the next record from a data file that is read sequentially
+     *  (the header must already have been skipped).
+     *
+     *  @return The record bytes, or null at the end of the file.
+     */
+    public static byte[] readRecord( DataInputStream in ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int termLength = readVarInt( in, out );
+        if ( termLength < 0 ) {
+            return null;
+        }
+        copy( in, out, termLength );
+        readVarInt( in, out );
+        int payloadLength = readVarInt( in, out );
+        copy( in, out, payloadLength );
+        return out.toByteArray();
+    }
+
+
+    /**
+     *  Reads a varint from a stream, echoing its bytes to <code>out</code>.
+     *  Returns -1 if the stream is at its end.
+     */
+    private static int readVarInt( DataInputStream in, ByteArrayOutputStream out ) throws IOException {
+        int b = in.read();
+        if ( b < 0 ) {
+            return -1;
+        }
+        out.write( b );
+        int value = b & 0x7F;
+        int shift = 7;
+        while (( b & 0x80 ) != 0 ) {
+            b = in.readUnsignedByte();
+            out.write( b );
+            value |= ( b & 0x7F ) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+
+    private static void copy( DataInputStream in, ByteArrayOutputStream out, int length ) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        out.write( bytes, 0, length );
+    }
+}
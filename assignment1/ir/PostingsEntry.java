@@ -8,16 +8,17 @@
 package ir;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.stream.Collectors;
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     public int docID;
 
     public double score = 0;
 
-    public ArrayList<Integer> positions = new ArrayList<>();
+    /** The positions of the term in the document; only the first freq are used. */
+    private int[] positions = new int[0];
+
+    private int freq = 0;
 
     /**
      * PostingsEntries are compared by their score (only relevant
@@ -43,26 +44,34 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     }
 
     public void addPosition(int position) {
-        positions.add(position);
-    }
-
-    public void setPositions(ArrayList<Integer> positions) {
-        this.positions = positions;
+        if (freq == positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(4, 2 * freq));
+        }
+        positions[freq++] = position;
     }
 
-    public PostingsEntry(int docID, ArrayList<Integer> positions) {
+    public PostingsEntry(int docID, int[] positions) {
         this.docID = docID;
-        this.positions.addAll(positions);
+        addPositions(positions);
     }
 
-    public void addPositions(ArrayList<Integer> positions) {
-        this.positions.addAll(positions);
+    public void addPositions(int[] positions) {
+        for (int position : positions) {
+            addPosition(position);
+        }
     }
 
-    public ArrayList<Integer> getPositions() {
+    /**
+     * Returns the positions array; only the first getFreq() entries are used.
+     */
+    public int[] getPositions() {
         return positions;
     }
 
+    public int getFreq() {
+        return freq;
+    }
+
     public int getDocID() {
         return docID;
     }
@@ -72,10 +81,15 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     }
 
     public String toString() {
-        String positionsString = positions.stream()
-                .map(Object::toString)
-                .collect(Collectors.joining(","));
-        return docID + ":" + positionsString;
+        StringBuilder sb = new StringBuilder();
+        sb.append(docID).append(':');
+        for (int i = 0; i < freq; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(positions[i]);
+        }
+        return sb.toString();
     }
 
     public PostingsEntry(String data) {
@@ -83,9 +97,9 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
         this.docID = Integer.parseInt(fields[0]);
 
         String[] wordStringPositions = fields[1].split(",");
-        this.positions = new ArrayList<>(wordStringPositions.length);
+        this.positions = new int[wordStringPositions.length];
         for (String pos : wordStringPositions) {
-            this.positions.add(Integer.parseInt(pos));
+            addPosition(Integer.parseInt(pos));
         }
     }
 
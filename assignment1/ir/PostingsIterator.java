@@ -0,0 +1,77 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2017
+ */
+
+package ir;
+
+
+/**
+ *  A cursor over the postings of one term, in increasing docID order.
+ *
+ *  The cursor starts before the first document; nextDoc() or advance()
+ *  must be called before docID(), freq() or positions(). Implementations
+ *  read directly from the index representation (a PostingsList in memory,
+ *  or an encoded record on disk), so documents that are skipped are never
+ *  turned into PostingsEntry objects.
+ */
+public interface PostingsIterator {
+
+    /** Returned by nextDoc() and advance() when the postings are exhausted. */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /** The current docID, -1 before the first call to nextDoc() or advance(). */
+    public int docID();
+
+    /** Moves to the next document and returns its docID (or NO_MORE_DOCS). */
+    public int nextDoc();
+
+    /**
+     *  Moves to the first document whose docID is greater than or equal to
+     *  <code>target</code> and returns its docID (or NO_MORE_DOCS). The
+     *  cursor does not move if the current document already qualifies.
+     */
+    public int advance( int target );
+
+    /** The number of occurrences of the term in the current document. */
+    public int freq();
+
+    /**
+     *  The positions of the term in the current document. They are decoded
+     *  only when this method is called. The first freq() elements of the
+     *  returned array are valid until the cursor moves.
+     */
+    public int[] positions();
+
+    /** The number of documents in the postings (the document frequency). */
+    public int cost();
+
+    /**
+     *  The number of documents in the postings that are not deleted, which
+     *  is the document frequency to rank by. It may be costly to compute, so
+     *  cost() should be used when an estimate will do.
+     */
+    public default int docFreq() {
+        return cost();
+    }
+
+    /**
+     *  The largest tf/length of the documents in the postings, which is the
+     *  largest score the term can give a document before its idf, with the
+     *  length of the given normalization. Infinite if it is not known.
+     */
+    public default float maxScore( NormalizationType normType ) {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     *  The documents of the postings as a bitmap, if the index keeps one
+     *  for the term (see PostingsCodec.BITMAP_MIN_DF), or null. The cursor
+     *  should not be used after this is called.
+     */
+    public default DocBitmap docBitmap() {
+        return null;
+    }
+}
@@ -8,28 +8,131 @@
 package ir;
 
 import java.util.*;
-import java.util.stream.Collectors;
-
-import ir.PersistentHashedIndex.Entry;
 
+/**
+ * A postings list stored in primitive arrays: the docIDs, the end of each
+ * document's positions, and the positions of all documents one after the
+ * other. Nothing is boxed, so a posting costs a few bytes instead of an
+ * object per document and per position.
+ *
+ * The PostingsEntry methods (get, insert, iteration) are kept for code
+ * that works with entries; they copy to and from the arrays.
+ */
 public class PostingsList implements Iterable<PostingsEntry> {
-    /**
-     * The postings list
-     */
-    private ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+
+    private static final int[] EMPTY = new int[0];
+
+    /** The docIDs, in increasing order. */
+    private int[] docIDs = EMPTY;
+
+    /** The positions of document i are positions[ends[i-1]] to positions[ends[i]-1]. */
+    private int[] ends = EMPTY;
+
+    /** The positions of all documents. */
+    private int[] positions = EMPTY;
+
+    /** The scores of the documents, allocated when the first score is set. */
+    private double[] scores = null;
+
+    /** Number of documents in this list. */
+    private int size = 0;
 
     /**
      * Number of postings in this list.
      */
     public int size() {
-        return list.size();
+        return size;
+    }
+
+    /**
+     * Returns the docID of the ith posting.
+     */
+    public int docID(int i) {
+        return docIDs[i];
     }
 
     /**
-     * Returns the ith posting.
+     * Returns the number of positions of the ith posting.
+     */
+    public int freq(int i) {
+        return ends[i] - start(i);
+    }
+
+    /**
+     * Returns the jth position of the ith posting.
+     */
+    public int position(int i, int j) {
+        return positions[start(i) + j];
+    }
+
+    /**
+     * Copies the positions of the ith posting to the start of dest, which
+     * must have room for freq(i) positions.
+     */
+    public void copyPositions(int i, int[] dest) {
+        System.arraycopy(positions, start(i), dest, 0, freq(i));
+    }
+
+    /**
+     * Returns the score of the ith posting (only relevant in ranked retrieval).
+     */
+    public double score(int i) {
+        return scores == null ? 0 : scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        if (scores == null) {
+            scores = new double[docIDs.length];
+        }
+        scores[i] = score;
+    }
+
+    /**
+     * Returns the ith posting as a PostingsEntry. The entry is a copy:
+     * changing it does not change the list.
      */
     public PostingsEntry get(int i) {
-        return list.get(i);
+        PostingsEntry entry = new PostingsEntry(docIDs[i]);
+        int freq = freq(i);
+        for (int j = 0; j < freq; j++) {
+            entry.addPosition(position(i, j));
+        }
+        entry.score = score(i);
+        return entry;
+    }
+
+    /**
+     * Adds an occurrence of the term at the end of the list. If docID is the
+     * last document in the list, the position is added to it; otherwise the
+     * document is appended (it must come after the last one).
+     */
+    public void addPosting(int docID, int position) {
+        if (size == 0 || docIDs[size - 1] != docID) {
+            addDoc(docID);
+        }
+        int count = ends[size - 1];
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, grow(count));
+        }
+        positions[count] = position;
+        ends[size - 1] = count + 1;
+    }
+
+    /**
+     * Appends a document without positions (as in a query result).
+     */
+    public void addDoc(int docID) {
+        if (size == docIDs.length) {
+            int capacity = grow(size);
+            docIDs = Arrays.copyOf(docIDs, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            if (scores != null) {
+                scores = Arrays.copyOf(scores, capacity);
+            }
+        }
+        docIDs[size] = docID;
+        ends[size] = size == 0 ? 0 : ends[size - 1];
+        size++;
     }
 
     /**
@@ -38,50 +141,101 @@ public class PostingsList implements Iterable<PostingsEntry> {
      * If the entry is not found, it inserts the entry at the calculated index.
      */
     public void insert(PostingsEntry entry) {
-        int low = 0; // Initialize the low index for binary search
-        int high = list.size() - 1; // Initialize the high index for binary search
-        int index = -1; // Initialize the index to store the insertion point
-
         // Binary search to find the insertion point
-        while (low <= high) {
-            int mid = low + (high - low) / 2; // Calculate the middle index
-            if (list.get(mid).getDocID() == entry.getDocID()) { // If entry with same docID found
-                index = mid; // Store the index of found entry
-                break; // Exit the loop
-            } else if (list.get(mid).getDocID() < entry.getDocID()) { // If entry's docID is greater
-                low = mid + 1; // Move low to the right
-            } else { // If entry's docID is smaller
-                high = mid - 1; // Move high to the left
+        int index = Arrays.binarySearch(docIDs, 0, size, entry.docID);
+        if (index < 0) {
+            // Not in the list; make room for a document without positions
+            index = -index - 1;
+            addDoc(entry.docID);
+            System.arraycopy(docIDs, index, docIDs, index + 1, size - 1 - index);
+            System.arraycopy(ends, index, ends, index + 1, size - 1 - index);
+            if (scores != null) {
+                System.arraycopy(scores, index, scores, index + 1, size - 1 - index);
+            }
+            docIDs[index] = entry.docID;
+            ends[index] = start(index);
+            // The shifted scores leave the neighbour's in the new slot
+            if (scores != null || entry.score != 0) {
+                setScore(index, entry.score);
             }
         }
+        // Add the positions after the ones already in the document
+        int freq = entry.getFreq();
+        int count = ends[size - 1];
+        if (count + freq > positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(grow(positions.length), count + freq));
+        }
+        int end = ends[index];
+        System.arraycopy(positions, end, positions, end + freq, count - end);
+        System.arraycopy(entry.getPositions(), 0, positions, end, freq);
+        for (int i = index; i < size; i++) {
+            ends[i] += freq;
+        }
+    }
 
-        // Not in the list
-        if (index == -1) {
-            index = low; // Set the index to the insertion point
+    /**
+     * Appends an entry whose docID comes after the last one in the list.
+     */
+    public void insertEntry(PostingsEntry entry) {
+        addDoc(entry.docID);
+        int freq = entry.getFreq();
+        int[] entryPositions = entry.getPositions();
+        for (int j = 0; j < freq; j++) {
+            addPosting(entry.docID, entryPositions[j]);
         }
+        if (entry.score != 0) {
+            setScore(size - 1, entry.score);
+        }
+    }
 
-        // Add or merge entry
-        if (index < list.size() && list.get(index).getDocID() == entry.getDocID()) { // If entry already exists
-            list.get(index).addPositions(entry.getPositions()); // Merge positions
-        } else { // If entry does not exist
-            list.add(index, entry); // Insert entry at calculated index
+    /**
+     * Appends all postings of another list, whose docIDs must come after
+     * the last one in this list.
+     */
+    public void addAll(PostingsList other) {
+        for (int i = 0; i < other.size; i++) {
+            addDoc(other.docIDs[i]);
+            for (int j = other.start(i); j < other.ends[i]; j++) {
+                addPosting(other.docIDs[i], other.positions[j]);
+            }
         }
     }
-    public void insertEntry(PostingsEntry entry){
-        list.add(entry);
+
+    /**
+     * An estimate of the bytes held by the arrays of this list.
+     */
+    public long memoryUsage() {
+        return 4L * (docIDs.length + ends.length + positions.length) + (scores == null ? 0 : 8L * scores.length);
     }
-    
 
     public String toString() {
-        return list.stream()
-                .map(PostingsEntry::toString)
-                .collect(Collectors.joining(";"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(';');
+            }
+            sb.append(docIDs[i]).append(':');
+            for (int j = start(i); j < ends[i]; j++) {
+                if (j > start(i)) {
+                    sb.append(',');
+                }
+                sb.append(positions[j]);
+            }
+        }
+        return sb.toString();
     }
 
+    /**
+     * Parses the "docID:pos,pos;docID:pos" form written by toString.
+     */
     public PostingsList(String data) {
-        list = Arrays.stream(data.split(";"))
-                .map(PostingsEntry::new)
-                .collect(Collectors.toCollection(ArrayList::new));
+        for (String entry : data.split(";")) {
+            String[] fields = entry.split(":");
+            int docID = Integer.parseInt(fields[0]);
+            for (String pos : fields[1].split(",")) {
+                addPosting(docID, Integer.parseInt(pos));
+            }
+        }
     }
 
     public PostingsList() {
@@ -89,7 +243,28 @@ public class PostingsList implements Iterable<PostingsEntry> {
 
     @Override
     public Iterator<PostingsEntry> iterator() {
-        return list.iterator();
+        return new Iterator<PostingsEntry>() {
+            int i = 0;
+
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            public PostingsEntry next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+        };
+    }
+
+    private int start(int i) {
+        return i == 0 ? 0 : ends[i - 1];
+    }
+
+    private static int grow(int capacity) {
+        return Math.max(2, capacity + (capacity >> 1));
     }
 
 }
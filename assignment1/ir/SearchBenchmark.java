@@ -0,0 +1,270 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.util.*;
+
+
+/**
+ *  Times intersection and phrase queries against the persistent index in
+ *  ./index, once with cursors that jump ahead using the skip entries of
+ *  the postings records (and intersect the bitmaps of common terms) and
+ *  once with cursors that step through every document. Queries pairing a
+ *  rare term with a very common one show the difference best. Ranked
+ *  queries are timed term at a time and with MaxScore, which skips the
+ *  documents that cannot be among the best.
+ */
+public class SearchBenchmark {
+
+    /** Queries used when none are given on the command line. */
+    static final String[] DEFAULT_QUERIES = {
+        "zombie the", "the zombie", "zombie of", "graduate davis",
+        "pizza the", "computer science", "uc davis", "of the"
+    };
+
+    int repetitions = 20;
+    int rankedResults = 10;
+    boolean memory_mapped = false;
+    ArrayList<String> queries = new ArrayList<String>();
+
+
+    /**
+     *  A cursor that ignores the skip entries: advance() moves one document
+     *  at a time.
+     */
+    static class LinearIterator implements PostingsIterator {
+        final PostingsIterator it;
+
+        LinearIterator( PostingsIterator it ) {
+            this.it = it;
+        }
+
+        public int docID() {
+            return it.docID();
+        }
+
+        public int nextDoc() {
+            return it.nextDoc();
+        }
+
+        public int advance( int target ) {
+            int docID = it.docID();
+            while ( docID < target ) {
+                docID = it.nextDoc();
+            }
+            return docID;
+        }
+
+        public int freq() {
+            return it.freq();
+        }
+
+        public int[] positions() {
+            return it.positions();
+        }
+
+        public int cost() {
+            return it.cost();
+        }
+    }
+
+
+    /**
+     *  Runs every query as an intersection, a phrase and a ranked query,
+     *  with and without skipping, and prints the median time of each.
+     */
+    public void run() {
+        PersistentScalableHashedIndex index = new PersistentScalableHashedIndex();
+        if ( memory_mapped ) {
+            index.mapIndexFiles();
+        }
+        Searcher searcher = new Searcher( index, null );
+        searcher.maxRankedResults = rankedResults;
+        if ( queries.isEmpty() ) {
+            queries.addAll( Arrays.asList( DEFAULT_QUERIES ));
+        }
+
+        ArrayList<String> report = new ArrayList<String>();
+        report.add( String.format( "%-24s %-8s %-16s %8s %12s %12s %8s",
+                                   "query", "type", "df", "hits", "linear(us)", "skips(us)", "speedup" ));
+        for ( String query : queries ) {
+            String[] terms = query.split( " " );
+            for ( QueryType type : new QueryType[] { QueryType.INTERSECTION_QUERY, QueryType.PHRASE_QUERY } ) {
+                long[] linear = new long[repetitions];
+                long[] skips = new long[repetitions];
+                int hits = 0;
+                String df = "";
+                for ( int r = 0; r < repetitions; r++ ) {
+                    PostingsIterator[] its = open( index, terms, false );
+                    long start = System.nanoTime();
+                    hits = search( searcher, its, type );
+                    linear[r] = System.nanoTime() - start;
+
+                    its = open( index, terms, true );
+                    if ( its != null ) {
+                        StringBuilder sb = new StringBuilder();
+                        for ( PostingsIterator it : its ) {
+                            sb.append( sb.length() > 0 ? "/" : "" ).append( it.cost() );
+                        }
+                        df = sb.toString();
+                    }
+                    start = System.nanoTime();
+                    int skipHits = search( searcher, its, type );
+                    skips[r] = System.nanoTime() - start;
+                    if ( skipHits != hits ) {
+                        System.err.println( "Results differ for '" + query + "': " + hits + " vs " + skipHits );
+                    }
+                }
+                long linearTime = median( linear ) / 1000;
+                long skipTime = median( skips ) / 1000;
+                report.add( String.format( "%-24s %-8s %-16s %8d %12d %12d %7.1fx",
+                                           query, type == QueryType.INTERSECTION_QUERY ? "and" : "phrase",
+                                           df, hits, linearTime, skipTime,
+                                           (double) Math.max( linearTime, 1 ) / Math.max( skipTime, 1 )));
+            }
+            report.add( ranked( searcher, query ));
+        }
+        for ( String line : report ) {
+            System.err.println( line );
+        }
+        System.err.println( String.format( "%d lookups, %.2f dictionary probes and %.2f data reads per lookup",
+                                           index.lookups, (double) index.totalProbes / Math.max( index.lookups, 1 ),
+                                           (double) index.totalDataReads / Math.max( index.lookups, 1 )));
+    }
+
+
+    /**
+     *  Looks up the cursors of the terms, or returns null if some term is
+     *  not in the index.
+     */
+    PostingsIterator[] open( Index index, String[] terms, boolean withSkips ) {
+        PostingsIterator[] its = new PostingsIterator[terms.length];
+        for ( int i = 0; i < terms.length; i++ ) {
+            PostingsIterator it = index.getPostingsIterator( terms[i] );
+            if ( it == null ) {
+                return null;
+            }
+            its[i] = withSkips ? it : new LinearIterator( it );
+        }
+        return its;
+    }
+
+
+    /**
+     *  Times a ranked query term at a time (the linear column) and with
+     *  MaxScore (the skips column), and checks that both give the same
+     *  documents with the same scores.
+     */
+    String ranked( Searcher searcher, String query ) {
+        long[] linear = new long[repetitions];
+        long[] skips = new long[repetitions];
+        int hits = 0;
+        for ( int r = 0; r < repetitions; r++ ) {
+            searcher.pruning = false;
+            long start = System.nanoTime();
+            PostingsList all = searcher.rankedSearch( new Query( query ), NormalizationType.NUMBER_OF_WORDS );
+            linear[r] = System.nanoTime() - start;
+
+            searcher.pruning = true;
+            start = System.nanoTime();
+            PostingsList best = searcher.rankedSearch( new Query( query ), NormalizationType.NUMBER_OF_WORDS );
+            skips[r] = System.nanoTime() - start;
+            hits = all.size();
+            if ( !sameRanking( all, best )) {
+                System.err.println( "Rankings differ for '" + query + "'" );
+            }
+        }
+        long linearTime = median( linear ) / 1000;
+        long skipTime = median( skips ) / 1000;
+        return String.format( "%-24s %-8s %-16s %8d %12d %12d %7.1fx", query, "ranked", "", hits, linearTime, skipTime,
+                              (double) Math.max( linearTime, 1 ) / Math.max( skipTime, 1 ));
+    }
+
+
+    static boolean sameRanking( PostingsList a, PostingsList b ) {
+        if ( a.size() != b.size() ) {
+            return false;
+        }
+        for ( int i = 0; i < a.size(); i++ ) {
+            if ( a.docID( i ) != b.docID( i ) || a.score( i ) != b.score( i )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    int search( Searcher searcher, PostingsIterator[] its, QueryType type ) {
+        PostingsList result = type == QueryType.INTERSECTION_QUERY ?
+            searcher.intersect( its ) : searcher.positionalIntersect( its );
+        return result.size();
+    }
+
+
+    static long median( long[] times ) {
+        long[] sorted = times.clone();
+        Arrays.sort( sorted );
+        return sorted[sorted.length / 2];
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -q <query> : a query to time, e.g. \"zombie the\" (optional, may be repeated)" );
+        System.err.println( "  -r <number> : repetitions per query (optional, default 20)" );
+        System.err.println( "  -k <number> : documents returned by ranked queries (optional, default 10)" );
+        System.err.println( "  -mm : memory-map the index files (optional)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) {
+        SearchBenchmark b = new SearchBenchmark();
+        // Parse command line arguments
+        int i=0;
+        while ( i<args.length ) {
+            if ( args[i].equals( "-mm" )) {
+                b.memory_mapped = true;
+                i++;
+            } else if ( args[i].equals( "-q" )) {
+                i++;
+                if ( i<args.length ) {
+                    b.queries.add( args[i] );
+                    i++;
+                } else {
+                    printHelpMessage();
+                    return;
+                }
+            } else if ( args[i].equals( "-k" )) {
+                i++;
+                if ( i<args.length ) {
+                    b.rankedResults = Integer.parseInt( args[i] );
+                    i++;
+                } else {
+                    printHelpMessage();
+                    return;
+                }
+            } else if ( args[i].equals( "-r" )) {
+                i++;
+                if ( i<args.length ) {
+                    b.repetitions = Integer.parseInt( args[i] );
+                    i++;
+                } else {
+                    printHelpMessage();
+                    return;
+                }
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        b.run();
+    }
+}
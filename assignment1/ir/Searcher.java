@@ -16,6 +16,25 @@ public class Searcher {
     /** The k-gram index to be searched by this Searcher */
     final KGramIndex kgIndex;
 
+    /** Scratch space for phrase matching: the positions of each term, their number, and how far each has been read. */
+    private int[][] positions = new int[0][];
+    private int[] freqs;
+    private int[] pointers;
+
+    /** The number of best documents a ranked query returns. */
+    int maxRankedResults = 1000;
+
+    /** Whether ranked queries skip the documents that cannot be among the best. */
+    boolean pruning = true;
+
+    /**
+     * Scratch space for ranked queries: the score of every document so far,
+     * indexed by docID, and the documents with a score. Only the touched
+     * documents are reset after a query.
+     */
+    private float[] accumulators = new float[0];
+    private int[] touched = new int[64];
+
     /** Constructor */
     public Searcher(Index index, KGramIndex kgIndex) {
         this.index = index;
@@ -29,158 +48,492 @@ public class Searcher {
      */
     public PostingsList search(Query query, QueryType queryType, RankingType rankingType, NormalizationType normType) {
 
-        List<PostingsList> postings = getPostingsLists(query);
-
-        if (postings == null || postings.isEmpty()) {
+        if (query.size() == 0) {
             return new PostingsList();
         }
 
+        if (queryType == QueryType.RANKED_QUERY) {
+            return rankedSearch(query, normType);
+        }
+
+        PostingsIterator[] iterators = getPostingsIterators(query);
+
         PostingsList result = null;
 
         if (queryType == QueryType.INTERSECTION_QUERY) {
-            result = query(postings, true);
+            result = intersect(iterators);
         } else if (queryType == QueryType.PHRASE_QUERY) {
-            result = query(postings, false);
+            result = positionalIntersect(iterators);
         }
         return result;
     }
 
-    public List<PostingsList> getPostingsLists(Query query) {
-        List<PostingsList> postings = new ArrayList<>();
+    /**
+     * Returns a cursor over the postings of every query term, in query order,
+     * or null if some term is not in the index (so that no document can
+     * contain all terms).
+     */
+    public PostingsIterator[] getPostingsIterators(Query query) {
+        PostingsIterator[] iterators = new PostingsIterator[query.size()];
         for (int i = 0; i < query.size(); ++i) {
-            PostingsList list = index.getPostings(query.queryterm.get(i).term);
-            if (list == null) {
-                list = new PostingsList();
+            iterators[i] = index.getPostingsIterator(query.queryterm.get(i).term);
+            if (iterators[i] == null) {
+                return null;
             }
-            postings.add(list);
         }
-        return postings;
+        return iterators;
     }
 
-    public PostingsList query(List<PostingsList> postings, boolean isIntersectionQuery) {
-        if (postings == null || postings.isEmpty()) {
-            return new PostingsList();
+    /**
+     * Returns the documents that contain all terms. The terms that have a
+     * bitmap of their documents are intersected as bitmaps first.
+     */
+    public PostingsList intersect(PostingsIterator[] iterators) {
+        PostingsList answer = new PostingsList();
+        if (iterators == null) {
+            return answer;
         }
-        Iterator<PostingsList> iterator = postings.iterator();
-        PostingsList result = iterator.next();
-        while (iterator.hasNext()) {
-            result = isIntersectionQuery ? intersect(result, iterator.next())
-                    : positionalIntersect(result, iterator.next());
+        iterators = plan(withBitmaps(iterators));
+        int docID = nextMatch(iterators, iterators[0].nextDoc());
+        while (docID != PostingsIterator.NO_MORE_DOCS) {
+            // The documents come in increasing order, so they can simply be appended
+            answer.addDoc(docID);
+            docID = nextMatch(iterators, iterators[0].nextDoc());
         }
-        return result;
+        return answer;
     }
 
-    public PostingsList positionalIntersect(PostingsList postingsList1, PostingsList postingsList2) {
-        // Create a new PostingsList to store the intersection results.
-        final PostingsList answer = new PostingsList();
-
-        // Initialize iterators for both input postings lists.
-        Iterator<PostingsEntry> iterator1 = postingsList1.iterator();
-        Iterator<PostingsEntry> iterator2 = postingsList2.iterator();
-
-        // Initialize variables to hold the current entry from each iterator.
-        PostingsEntry entry1 = null;
-        PostingsEntry entry2 = null;
-        // Advance each iterator to its first element, if possible.
-        if (iterator1.hasNext()) {
-            entry1 = iterator1.next();
-        }
-        if (iterator2.hasNext()) {
-            entry2 = iterator2.next();
-        }
-
-        // Continue as long as both postings lists have elements.
-        while (entry1 != null && entry2 != null) {
-            // Compare the document IDs of the current entries.
-            int docId1 = entry1.docID;
-            int docId2 = entry2.docID;
-
-            // If the document IDs match, we need to check the positions for a phrase match.
-            if (docId1 == docId2) {
-                // Temporary list to store positions where the terms appear next to each other.
-                ArrayList<Integer> l = new ArrayList<>();
-                // Initialize position iterators for the current entries.
-                Iterator<Integer> positionIterator1 = entry1.positions.iterator();
-                Iterator<Integer> positionIterator2 = entry2.positions.iterator();
-                Integer pos1 = null;
-                Integer pos2 = null;
-                // Advance each position iterator to its first element, if possible.
-                if (positionIterator1.hasNext()) {
-                    pos1 = positionIterator1.next();
+    /**
+     * Returns the documents in which the terms occur next to each other,
+     * in query order.
+     */
+    public PostingsList positionalIntersect(PostingsIterator[] iterators) {
+        PostingsList answer = new PostingsList();
+        if (iterators == null) {
+            return answer;
+        }
+        // The same cursors, in the order they are advanced
+        PostingsIterator[] plan = plan(iterators);
+        int docID = nextMatch(plan, plan[0].nextDoc());
+        while (docID != PostingsIterator.NO_MORE_DOCS) {
+            if (phraseOccurs(iterators)) {
+                answer.addDoc(docID);
+            }
+            docID = nextMatch(plan, plan[0].nextDoc());
+        }
+        return answer;
+    }
+
+    /**
+     * Replaces the cursors of the terms that have a bitmap of their
+     * documents by one cursor over the AND of the bitmaps (smallest first),
+     * so that the postings of those terms are never read.
+     */
+    private static PostingsIterator[] withBitmaps(PostingsIterator[] iterators) {
+        List<PostingsIterator> result = new ArrayList<>();
+        List<DocBitmap> bitmaps = new ArrayList<>();
+        for (PostingsIterator it : iterators) {
+            DocBitmap bitmap = it.docBitmap();
+            if (bitmap != null) {
+                bitmaps.add(bitmap);
+            } else {
+                result.add(it);
+            }
+        }
+        if (bitmaps.isEmpty()) {
+            return iterators;
+        }
+        bitmaps.sort(Comparator.comparingInt(DocBitmap::size));
+        DocBitmap common = bitmaps.get(0);
+        for (int i = 1; i < bitmaps.size(); i++) {
+            common = common.and(bitmaps.get(i));
+        }
+        result.add(common.iterator());
+        return result.toArray(new PostingsIterator[result.size()]);
+    }
+
+    /**
+     * Orders the cursors of an intersection by increasing document
+     * frequency. The rarest term then leads: the other cursors are only
+     * advanced to its documents, and the most common ones, which are
+     * advanced the least often, make the longest jumps.
+     */
+    private static PostingsIterator[] plan(PostingsIterator[] iterators) {
+        PostingsIterator[] plan = iterators.clone();
+        Arrays.sort(plan, Comparator.comparingInt(PostingsIterator::cost));
+        return plan;
+    }
+
+    /**
+     * Moves all cursors to the first document that all of them contain,
+     * starting from the document the first cursor is on. Cursors that are
+     * behind are advanced to the largest docID seen so far, so the
+     * documents in between are never decoded in full.
+     *
+     * @return The docID of the common document, or NO_MORE_DOCS.
+     */
+    private int nextMatch(PostingsIterator[] iterators, int docID) {
+        int i = 1;
+        while (docID != PostingsIterator.NO_MORE_DOCS && i < iterators.length) {
+            int other = iterators[i].advance(docID);
+            if (other == docID) {
+                i++;
+            } else {
+                // The other cursor went past docID; catch up with the first cursor and start over
+                docID = iterators[0].advance(other);
+                i = 1;
+            }
+        }
+        return docID;
+    }
+
+    /**
+     * Checks whether the terms occur at consecutive positions in the document
+     * all cursors are on, in one pass over the positions of all terms. The
+     * term with the fewest positions in the document proposes where the
+     * phrase could start, and every other term is checked at its offset from
+     * there. Each term keeps a pointer into its positions that only moves
+     * forward, so a candidate costs one step per term, and the search stops
+     * as soon as some term has no positions left.
+     */
+    private boolean phraseOccurs(PostingsIterator[] iterators) {
+        int n = iterators.length;
+        if (positions.length < n) {
+            positions = new int[n][];
+            freqs = new int[n];
+            pointers = new int[n];
+        }
+        int rarest = 0;
+        for (int k = 0; k < n; k++) {
+            positions[k] = iterators[k].positions();
+            freqs[k] = iterators[k].freq();
+            pointers[k] = 0;
+            if (freqs[k] < freqs[rarest]) {
+                rarest = k;
+            }
+        }
+
+        for (int i = 0; i < freqs[rarest]; i++) {
+            int start = positions[rarest][i] - rarest;
+            int k = 0;
+            for (; k < n; k++) {
+                if (k == rarest) {
+                    continue;
+                }
+                int target = start + k;
+                int j = pointers[k];
+                while (j < freqs[k] && positions[k][j] < target) {
+                    j++;
+                }
+                pointers[k] = j;
+                if (j == freqs[k]) {
+                    // Later candidates start even further on
+                    return false;
                 }
-                if (positionIterator2.hasNext()) {
-                    pos2 = positionIterator2.next();
+                if (positions[k][j] != target) {
+                    break;
                 }
+            }
+            if (k == n) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the maxRankedResults documents with the highest tf-idf scores,
+     * best first, with their scores. (There are no PageRank scores to
+     * combine with yet, so every ranking type is tf-idf.)
+     *
+     * The score of a document is the sum, over the query terms, of tf * idf
+     * * the weight of the term in the query, where idf = ln(N / df) and df
+     * is the length of the postings, divided by the length of the document.
+     * A document whose score stays 0 (its terms occur in every document) is
+     * left out. If the index knows the largest score of every term, the
+     * postings are read a document at a time and the documents that cannot
+     * be among the best are skipped (maxScoreSearch); otherwise they are
+     * read a term at a time (termAtATime). Both give the same documents
+     * with the same scores.
+     */
+    public PostingsList rankedSearch(Query query, NormalizationType normType) {
+        int n = Index.docNames.size();
+        PostingsIterator[] iterators = new PostingsIterator[query.size()];
+        float[] weights = new float[query.size()];
+        int terms = 0;
+        boolean bounded = pruning;
+        for (int i = 0; i < query.size(); i++) {
+            Query.QueryTerm term = query.queryterm.get(i);
+            PostingsIterator it = index.getPostingsIterator(term.term);
+            if (it == null) {
+                continue;
+            }
+            int df = it.docFreq();
+            if (df == 0) {
+                // All its documents have been deleted
+                continue;
+            }
+            weights[i] = (float) (term.weight * Math.log((double) n / df));
+            if (weights[i] <= 0) {
+                continue;
+            }
+            iterators[i] = it;
+            terms++;
+            bounded &= it.maxScore(normType) != Float.POSITIVE_INFINITY;
+        }
+        // A single term has nothing to skip
+        return bounded && terms > 1 ? maxScoreSearch(iterators, weights, normType) : termAtATime(iterators, weights, normType);
+    }
 
-                // Continue as long as both position lists have elements.
-                while (pos1 != null && pos2 != null) {
-                    // Check if the positions are consecutive (i.e., form a phrase).
-                    if (pos2 - pos1 == 1) {
-                        // If consecutive, add the position from the second list to the result.
-                        l.add(pos2);
-                        // Advance both position iterators.
-                        pos1 = positionIterator1.hasNext() ? positionIterator1.next() : null;
-                        pos2 = positionIterator2.hasNext() ? positionIterator2.next() : null;
-                    } else if (pos2 > pos1) {
-                        // If the position in the first list is before the second, advance the first
-                        // iterator.
-                        pos1 = positionIterator1.hasNext() ? positionIterator1.next() : null;
-                    } else {
-                        // If the position in the second list is before the first, advance the second
-                        // iterator.
-                        pos2 = positionIterator2.hasNext() ? positionIterator2.next() : null;
+    /**
+     * Ranks the documents a term at a time: the score of each term is added
+     * to the accumulator of the document, then the sums are divided by the
+     * length of the document and the best ones are kept in a heap of
+     * maxRankedResults documents. The terms without postings are null.
+     */
+    PostingsList termAtATime(PostingsIterator[] iterators, float[] weights, NormalizationType normType) {
+        int n = Index.docNames.size();
+        if (accumulators.length < n) {
+            accumulators = new float[n];
+        }
+        int count = 0;
+        for (int i = 0; i < iterators.length; i++) {
+            PostingsIterator it = iterators[i];
+            if (it == null) {
+                continue;
+            }
+            for (int docID = it.nextDoc(); docID != PostingsIterator.NO_MORE_DOCS; docID = it.nextDoc()) {
+                if (docID >= accumulators.length) {
+                    accumulators = Arrays.copyOf(accumulators, Math.max(2 * accumulators.length, docID + 1));
+                }
+                if (accumulators[docID] == 0) {
+                    if (count == touched.length) {
+                        touched = Arrays.copyOf(touched, 2 * count);
                     }
+                    touched[count++] = docID;
                 }
+                accumulators[docID] += it.freq() * weights[i];
+            }
+        }
+
+        ScoreHeap heap = new ScoreHeap(Math.min(maxRankedResults, count));
+        for (int i = 0; i < count; i++) {
+            int docID = touched[i];
+            heap.offer(docID, accumulators[docID] / length(docID, normType));
+            accumulators[docID] = 0;
+        }
+        return heap.toPostingsList();
+    }
+
+    /**
+     * Ranks the documents a document at a time with MaxScore: the largest
+     * score each term can give a document is its weight times the largest
+     * tf/length of its postings. With the terms sorted by that bound, the
+     * ones whose bounds add up to less than the worst score in the full
+     * heap cannot bring a document into it on their own. They are not
+     * essential: the documents come from the postings of the other terms
+     * only, and their postings are only advanced to those documents, while
+     * the bound of the score still allows the document in. The terms
+     * without postings are null.
+     */
+    PostingsList maxScoreSearch(PostingsIterator[] iterators, float[] weights, NormalizationType normType) {
+        if (maxRankedResults <= 0) {
+            return new PostingsList();
+        }
+        // The terms, by increasing bound
+        int m = 0;
+        Integer[] order = new Integer[iterators.length];
+        for (int i = 0; i < iterators.length; i++) {
+            if (iterators[i] != null) {
+                order[m++] = i;
+            }
+        }
+        double[] bounds = new double[iterators.length];
+        for (int k = 0; k < m; k++) {
+            bounds[order[k]] = weights[order[k]] * (double) iterators[order[k]].maxScore(normType);
+        }
+        Arrays.sort(order, 0, m, (a, b) -> Double.compare(bounds[a], bounds[b]));
+        PostingsIterator[] its = new PostingsIterator[m];
+        // cumulative[k] is the sum of the bounds of the terms up to k
+        double[] cumulative = new double[m];
+        for (int k = 0; k < m; k++) {
+            its[k] = iterators[order[k]];
+            its[k].nextDoc();
+            cumulative[k] = (k > 0 ? cumulative[k - 1] : 0) + bounds[order[k]];
+        }
 
-                // If any consecutive positions were found, add a new entry to the result list.
-                if (!l.isEmpty()) {
-                    answer.insert(new PostingsEntry(docId1, l));
+        ScoreHeap heap = new ScoreHeap(maxRankedResults);
+        float[] contributions = new float[iterators.length];
+        int firstEssential = 0;
+        while (firstEssential < m) {
+            int docID = PostingsIterator.NO_MORE_DOCS;
+            for (int k = firstEssential; k < m; k++) {
+                docID = Math.min(docID, its[k].docID());
+            }
+            if (docID == PostingsIterator.NO_MORE_DOCS) {
+                break;
+            }
+            double length = length(docID, normType);
+            double threshold = heap.full() ? heap.minScore() : 0;
+            float partial = 0;
+            for (int k = firstEssential; k < m; k++) {
+                if (its[k].docID() == docID) {
+                    contributions[order[k]] = its[k].freq() * weights[order[k]];
+                    partial += contributions[order[k]];
+                    its[k].nextDoc();
                 }
-                // Move to the next entries in both postings lists.
-                entry1 = iterator1.hasNext() ? iterator1.next() : null;
-                entry2 = iterator2.hasNext() ? iterator2.next() : null;
-            } else if (docId1 < docId2) {
-                // If the first document ID is less than the second, move to the next entry in
-                // the first list.
-                entry1 = iterator1.hasNext() ? iterator1.next() : null;
-            } else {
-                // If the second document ID is less than the first, move to the next entry in
-                // the second list.
-                entry2 = iterator2.hasNext() ? iterator2.next() : null;
             }
+            // The non-essential terms, largest bound first, while the
+            // document can still get in
+            boolean skipped = false;
+            for (int k = firstEssential - 1; k >= 0; k--) {
+                if (below(partial / length + cumulative[k], threshold)) {
+                    skipped = true;
+                    break;
+                }
+                if (its[k].advance(docID) == docID) {
+                    contributions[order[k]] = its[k].freq() * weights[order[k]];
+                    partial += contributions[order[k]];
+                }
+            }
+            if (!skipped) {
+                // Summed in query order, as termAtATime does
+                float score = 0;
+                for (int i = 0; i < iterators.length; i++) {
+                    score += contributions[i];
+                }
+                heap.offer(docID, score / length);
+                if (heap.full()) {
+                    while (firstEssential < m && below(cumulative[firstEssential], heap.minScore())) {
+                        firstEssential++;
+                    }
+                }
+            }
+            Arrays.fill(contributions, 0);
         }
-        return answer;
+        return heap.toPostingsList();
     }
 
-    public PostingsList intersect(PostingsList list1, PostingsList list2) {
-        // Create a new PostingsList to store the intersection result
-        PostingsList answer = new PostingsList();
+    /**
+     * True if a document whose score is at most <code>bound</code> cannot
+     * get into a full heap whose worst score is <code>threshold</code>. The
+     * bound is allowed a small error, as it is not summed in the order of
+     * the score.
+     */
+    private static boolean below(double bound, double threshold) {
+        return bound * (1 + 1e-5) < threshold;
+    }
 
-        // Initialize two pointers to iterate over list1 and list2
-        int index1 = 0, index2 = 0;
-
-        // Iterate through both lists until one of them is fully processed
-        while (index1 < list1.size() && index2 < list2.size()) {
-            // If the document IDs at the current positions are equal, add the document ID
-            // to the result and move both pointers forward
-            if (list1.get(index1).docID == list2.get(index2).docID) {
-                answer.insert(new PostingsEntry(list1.get(index1).docID));
-                index1++;
-                index2++;
-            } else {
-                // If the document ID in list1 is smaller than in list2, move the pointer of
-                // list1 forward
-                // Otherwise, move the pointer of list2 forward
-                if (list1.get(index1).docID < list2.get(index2).docID) {
-                    index1++;
-                } else {
-                    index2++;
+    /**
+     * The length a score is divided by: the number of words of the document,
+     * or the Euclidean length of its term frequency vector (or the number of
+     * words, if the index has not recorded that).
+     */
+    private static double length(int docID, NormalizationType normType) {
+        if (normType == NormalizationType.EUCLIDEAN) {
+            Double length = Index.docEuclideanLengths.get(docID);
+            if (length != null && length > 0) {
+                return length;
+            }
+        }
+        Integer length = Index.docLengths.get(docID);
+        return length == null || length == 0 ? 1 : length;
+    }
+
+    /**
+     * The best documents seen so far, at most a fixed number: a binary heap
+     * with the worst of them at the root, which a better document replaces.
+     * Of two documents with the same score, the one with the smaller docID
+     * is better.
+     */
+    private static class ScoreHeap {
+        private final int[] docIDs;
+        private final double[] scores;
+        private int size = 0;
+
+        ScoreHeap(int capacity) {
+            docIDs = new int[capacity];
+            scores = new double[capacity];
+        }
+
+        boolean full() {
+            return size == docIDs.length;
+        }
+
+        /** The score of the worst document in the heap. */
+        double minScore() {
+            return scores[0];
+        }
+
+        void offer(int docID, double score) {
+            if (size < docIDs.length) {
+                docIDs[size] = docID;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (size > 0 && worse(0, docID, score)) {
+                docIDs[0] = docID;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        /** True if the document at heap position i is worse than the given one. */
+        private boolean worse(int i, int docID, double score) {
+            return scores[i] < score || (scores[i] == score && docIDs[i] > docID);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(i, docIDs[parent], scores[parent])) {
+                    break;
                 }
+                swap(i, parent);
+                i = parent;
             }
         }
 
-        // Return the intersection result
-        return answer;
+        private void siftDown(int i) {
+            while (true) {
+                int worst = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                    if (worse(child, docIDs[worst], scores[worst])) {
+                        worst = child;
+                    }
+                }
+                if (worst == i) {
+                    break;
+                }
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int docID = docIDs[i];
+            docIDs[i] = docIDs[j];
+            docIDs[j] = docID;
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+
+        /** Empties the heap into a list, best document first. */
+        PostingsList toPostingsList() {
+            int count = size;
+            // Taking the worst document out each time fills the arrays from the end
+            while (size > 1) {
+                swap(0, --size);
+                siftDown(0);
+            }
+            size = 0;
+            PostingsList result = new PostingsList();
+            for (int i = 0; i < count; i++) {
+                result.addDoc(docIDs[i]);
+                result.setScore(i, scores[i]);
+            }
+            return result;
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, 2018
+ */
+
+package ir;
+
+import java.util.BitSet;
+import java.util.function.IntSupplier;
+
+
+/**
+ *  A PostingsIterator over the postings of a term in several segments of
+ *  an index, one after the other, leaving out deleted documents. Every
+ *  segment's docIDs must come after those of the segments before it.
+ */
+public class SegmentedPostingsIterator implements PostingsIterator {
+
+    private final PostingsIterator[] parts;
+
+    /** The deleted docIDs. */
+    private final BitSet deleted;
+
+    /** Counts the documents that are not deleted, when docFreq() is first called. */
+    private final IntSupplier liveDocs;
+    private int docFreq = -1;
+
+    /** Index of the segment of the current document. */
+    private int part = 0;
+
+    private int docID = -1;
+
+    public SegmentedPostingsIterator( PostingsIterator[] parts, BitSet deleted, IntSupplier liveDocs ) {
+        this.parts = parts;
+        this.deleted = deleted;
+        this.liveDocs = liveDocs;
+    }
+
+    public int docID() {
+        return docID;
+    }
+
+    public int nextDoc() {
+        while ( part < parts.length ) {
+            int next = parts[part].nextDoc();
+            if ( next == NO_MORE_DOCS ) {
+                part++;
+            } else if ( !deleted.get( next )) {
+                return docID = next;
+            }
+        }
+        return docID = NO_MORE_DOCS;
+    }
+
+    public int advance( int target ) {
+        if ( docID >= target ) {
+            return docID;
+        }
+        while ( part < parts.length ) {
+            int next = parts[part].advance( target );
+            if ( next == NO_MORE_DOCS ) {
+                part++;
+            } else if ( deleted.get( next )) {
+                return nextDoc();
+            } else {
+                return docID = next;
+            }
+        }
+        return docID = NO_MORE_DOCS;
+    }
+
+    public int freq() {
+        return parts[part].freq();
+    }
+
+    public int[] positions() {
+        return parts[part].positions();
+    }
+
+    /** The number of documents in all segments, deleted ones included. */
+    public int cost() {
+        int cost = 0;
+        for ( PostingsIterator p : parts ) {
+            cost += p.cost();
+        }
+        return cost;
+    }
+
+    /** The number of documents in all segments, without the deleted ones. */
+    public int docFreq() {
+        if ( docFreq < 0 ) {
+            docFreq = deleted.isEmpty() ? cost() : liveDocs.getAsInt();
+        }
+        return docFreq;
+    }
+
+    /**
+     *  The documents of all segments as one bitmap, without the deleted
+     *  ones, if the term has a bitmap in some segment. The segments
+     *  without one give their documents from their postings.
+     */
+    public DocBitmap docBitmap() {
+        DocBitmap[] bitmaps = new DocBitmap[parts.length];
+        boolean any = false;
+        for ( int i = 0; i < parts.length; i++ ) {
+            bitmaps[i] = parts[i].docBitmap();
+            any |= bitmaps[i] != null;
+        }
+        if ( !any ) {
+            return null;
+        }
+        DocBitmap result = null;
+        for ( int i = 0; i < parts.length; i++ ) {
+            DocBitmap part = bitmaps[i] != null ? bitmaps[i] : DocBitmap.of( parts[i] );
+            result = result == null ? part : result.or( part );
+        }
+        return deleted.isEmpty() ? result : result.andNot( DocBitmap.of( deleted ));
+    }
+
+    /** The largest of the largest scores of the segments. */
+    public float maxScore( NormalizationType normType ) {
+        float max = 0;
+        for ( PostingsIterator p : parts ) {
+            max = Math.max( max, p.maxScore( normType ));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.util.Arrays;
+
+
+/*
+ *   Maps the characters of a token to a String for the term, creating the
+ *   String only the first time the term is seen.
+ *
+ *   The tokenizer passes tokens as ranges of its buffer; looking them up
+ *   here instead of making a String of each one means that a token of a
+ *   known term costs no allocation. The table is an open-addressing hash
+ *   table of the Strings and their hash codes (the same as
+ *   String.hashCode, which the String then does not have to compute
+ *   again). It is not thread-safe; each tokenizing thread has its own.
+ *
+ *   The table is a cache: when it holds MAX_TERMS terms it is cleared,
+ *   so that a corpus with a huge vocabulary cannot fill the heap with it.
+ */
+public class TermTable {
+
+    /** Number of terms after which the table is cleared. */
+    static final int MAX_TERMS = 1 << 20;
+
+    private String[] terms = new String[1024];
+    private int[] hashes = new int[1024];
+    private int size = 0;
+
+
+    /**
+     *  Returns the term made of <code>length</code> characters of
+     *  <code>chars</code> from <code>start</code>.
+     */
+    public String intern( char[] chars, int start, int length ) {
+        int hash = 0;
+        for ( int i=0; i<length; i++ ) {
+            hash = 31*hash + chars[start + i];
+        }
+        int mask = terms.length - 1;
+        int slot = mix( hash ) & mask;
+        String term;
+        while (( term = terms[slot] ) != null ) {
+            if ( hashes[slot] == hash && matches( term, chars, start, length )) {
+                return term;
+            }
+            slot = ( slot + 1 ) & mask;
+        }
+        term = new String( chars, start, length );
+        if ( size == MAX_TERMS ) {
+            Arrays.fill( terms, null );
+            size = 0;
+            slot = mix( hash ) & mask;
+        }
+        terms[slot] = term;
+        hashes[slot] = hash;
+        if ( ++size > terms.length / 2 ) {
+            grow();
+        }
+        return term;
+    }
+
+
+    /** Number of terms in the table. */
+    public int size() {
+        return size;
+    }
+
+
+    private static boolean matches( String term, char[] chars, int start, int length ) {
+        if ( term.length() != length ) {
+            return false;
+        }
+        for ( int i=0; i<length; i++ ) {
+            if ( term.charAt( i ) != chars[start + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /** Spreads the bits of a String hash code, which are poor in the low bits for short strings. */
+    private static int mix( int hash ) {
+        return hash ^ ( hash >>> 16 );
+    }
+
+
+    private void grow() {
+        String[] oldTerms = terms;
+        int[] oldHashes = hashes;
+        terms = new String[oldTerms.length * 2];
+        hashes = new int[oldHashes.length * 2];
+        int mask = terms.length - 1;
+        for ( int i=0; i<oldTerms.length; i++ ) {
+            if ( oldTerms[i] != null ) {
+                int slot = mix( oldHashes[i] ) & mask;
+                while ( terms[slot] != null ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                terms[slot] = oldTerms[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
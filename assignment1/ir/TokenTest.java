@@ -8,7 +8,9 @@
 package ir;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.*;
+import java.nio.file.Files;
 
 
 /** 
@@ -21,6 +23,7 @@ public class TokenTest {
     boolean remove_punctuation = false;
     String patternsfile = null;
     String filename = null;
+    boolean utf8_bytes = false;
 
     /**
      *  Tokenizes and indexes the file @code{f}. If @code{f} is a directory,
@@ -39,14 +42,15 @@ public class TokenTest {
                 }
             } else {
                 try {
-                    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                    Tokenizer tok = new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile );
-                    int offset = 0;
-                    PrintStream out = new PrintStream( System.out, true, "UTF-8" );
-                    while ( tok.hasMoreTokens() ) { 
-                        out.println( tok.nextToken() );
+                    if ( utf8_bytes ) {
+                        Utf8Tokenizer tok = new Utf8Tokenizer( case_folding, remove_diacritics, remove_punctuation, patternsfile );
+                        tok.reset( ByteBuffer.wrap( Files.readAllBytes( f.toPath() )));
+                        printTokens( tok );
+                    } else {
+                        try ( Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 )) {
+                            printTokens( new Tokenizer( reader, case_folding, remove_diacritics, remove_punctuation, patternsfile ));
+                        }
                     }
-                    reader.close();
                 } catch ( IOException e ) {
                     e.printStackTrace();
                 }
@@ -55,6 +59,15 @@ public class TokenTest {
     }
 
 
+    /** Prints the tokens of a file, one per line. */
+    void printTokens( Tokenizer tok ) throws IOException {
+        PrintStream out = new PrintStream( System.out, true, "UTF-8" );
+        while ( tok.hasMoreTokens() ) { 
+            out.println( tok.nextToken() );
+        }
+    }
+
+
     /** Prints usage information. */
     static void printHelpMessage() {
         System.err.println( "The following parameters are available: " );
@@ -63,6 +76,7 @@ public class TokenTest {
         System.err.println( "  -rd : removes diacritics  (optional)" );
         System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
         System.err.println( "  -f <filename> : name of file or directory to be tokenized (mandatory)" );
+        System.err.println( "  -b : tokenize the UTF-8 bytes of the files directly (optional)" );
     }
 
 
@@ -78,6 +92,9 @@ public class TokenTest {
             } else if ( args[i].equals( "-rd" )) {
                 t.remove_diacritics = true;
                 i++;
+            } else if ( args[i].equals( "-b" )) {
+                t.utf8_bytes = true;
+                i++;
             } else if ( args[i].equals( "-rp" )) {
                 t.remove_punctuation = true;
                 i++;
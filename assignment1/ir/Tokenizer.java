@@ -14,6 +14,7 @@ import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.regex.PatternSyntaxException;
@@ -21,9 +22,55 @@ import java.lang.System;
 
 /**
  * This class performs tokenization of UTF-8 encoded text files.
+ *
+ * Tokens can be pulled one at a time as Strings (hasMoreTokens/nextToken),
+ * or pushed to a TokenHandler as ranges of the internal buffer
+ * (tokenize), which creates no objects per token. A tokenizer can be
+ * reset to read another text, so that its buffer and patterns are
+ * reused.
  */
 public class Tokenizer {
 
+    /**
+     * Receives the tokens of a text. The characters are only valid during
+     * the call; they are overwritten as the text is read.
+     */
+    public interface TokenHandler {
+        void token(char[] chars, int start, int length);
+    }
+
+    /**
+     * A CharSequence view of a range of the buffer, so that the patterns
+     * can be matched without copying the token.
+     */
+    static class CharSlice implements CharSequence {
+        char[] chars;
+        int start;
+        int end;
+
+        void set(char[] chars, int start, int end) {
+            this.chars = chars;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int length() {
+            return end - start;
+        }
+
+        public char charAt(int index) {
+            return chars[start + index];
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            return new String(chars, start + from, to - from);
+        }
+
+        public String toString() {
+            return new String(chars, start, end - start);
+        }
+    }
+
     /**
      * This flag should be set to 'true' if all letters should be
      * turned into lowercase.
@@ -64,7 +111,13 @@ public class Tokenizer {
     int token_start = -1;
 
     /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    ArrayDeque<String> token_queue = new ArrayDeque<String>();
+
+    /** Receives the tokens instead of the queue while tokenize() runs. */
+    TokenHandler handler = null;
+
+    /** The candidate token the patterns are matched against. */
+    CharSlice slice = new CharSlice();
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
@@ -72,6 +125,9 @@ public class Tokenizer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     ArrayList<Pattern> patterns = null;
 
+    /** Finds the patterns in candidate tokens. */
+    PatternSet.Finder finder = null;
+
     /**
      * Special characters (with diacritics) can be translated into these characters.
      */
@@ -113,9 +169,47 @@ public class Tokenizer {
         this.remove_punctuation = remove_punctuation;
         if (pattern_file != null) {
             readPatterns(pattern_file);
+            finder = new PatternSet(patterns).finder();
         }
     }
 
+    /**
+     * Makes the tokenizer read a new text from the start. The buffer and
+     * the patterns are kept.
+     */
+    public void reset(Reader reader) {
+        this.reader = reader;
+        ptr = 0;
+        token_start = -1;
+        token_queue.clear();
+        started_reading = false;
+        // An empty text does not overwrite the buffer
+        buf[0] = 0;
+    }
+
+    /**
+     * Reads the rest of the text and passes every token to the handler.
+     *
+     * @return the number of tokens.
+     */
+    public int tokenize(TokenHandler handler) throws IOException {
+        int count = 0;
+        while (!token_queue.isEmpty()) {
+            String token = token_queue.poll();
+            handler.token(token.toCharArray(), 0, token.length());
+            count++;
+        }
+        this.handler = handler;
+        tokens_emitted = 0;
+        try {
+            while (readTokens()) {
+            }
+        } finally {
+            this.handler = null;
+        }
+        return count + tokens_emitted;
+    }
+
     /**
      * Returns true if the character is a punctuation character.
      */
@@ -189,6 +283,9 @@ public class Tokenizer {
         return false;
     }
 
+    /** Number of tokens passed to the handler. */
+    private int tokens_emitted = 0;
+
     /**
      * @return the @code{true} if there are more tokens to be
      *         read, and @code{false} otherwise.
@@ -211,18 +308,18 @@ public class Tokenizer {
     public String nextToken() throws IOException {
         if (token_queue.size() == 0) {
             if (readTokens())
-                return token_queue.remove(0);
+                return token_queue.poll();
             else
                 return null;
         } else {
-            return token_queue.remove(0);
+            return token_queue.poll();
         }
     }
 
     /**
      * Reads the next token.
      */
-    private boolean readTokens() throws IOException {
+    boolean readTokens() throws IOException {
         if (!started_reading) {
             refillBuffer(0);
             started_reading = true;
@@ -272,70 +369,78 @@ public class Tokenizer {
     /**
      * Adds token to the queue
      */
-    private boolean addTokensToQueue() {
+    boolean addTokensToQueue() {
         if (token_start < 0) {
             return false;
         }
-        String s = new String(buf, token_start, ptr - token_start);
-        if (patterns != null) {
-            // Now let's see if the string s matches one of the patterns
+        if (finder != null) {
+            // Now let's see if the candidate token matches one of the patterns
             // for non-standard words
-            for (Pattern p : patterns) {
-                Matcher m = p.matcher(s);
-                if (m.find()) {
-                    // The string contains a non-standard word. First check the prefix
-                    // before the matching substring, then add the non-standard word
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue(s.substring(0, m.start()));
-                    token_queue.add(m.group());
-                    token_start += m.end();
-                    addTokensToQueue();
-                    return true;
-                }
+            slice.set(buf, token_start, ptr);
+            if (finder.find(slice)) {
+                // The string contains a non-standard word. First check the prefix
+                // before the matching substring, then add the non-standard word
+                // to the token queue, then check the remainder of the string.
+                int start = finder.start();
+                int end = finder.end();
+                addStandardTokensToQueue(token_start, token_start + start);
+                emit(token_start + start, token_start + end);
+                token_start += end;
+                addTokensToQueue();
+                return true;
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue(s);
+        return addStandardTokensToQueue(token_start, ptr);
     }
 
     /**
      * Adds standard tokens (i.e. tokens not matching any regular
-     * expression) to the queue.
+     * expression) in buf[start..end) to the queue.
      */
-    private boolean addStandardTokensToQueue(String s) {
-        // This string s does not match any specific pattern.
+    private boolean addStandardTokensToQueue(int start, int end) {
+        // This string does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for (int i = 0; i < s.length(); i++) {
-            if (punctuation(s.charAt(i))) {
+        int t = start;
+        for (int i = start; i < end; i++) {
+            if (punctuation(buf[i])) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if (t.length() > 0) {
-                    token_queue.add(t);
-                    smallbuf = new StringBuffer();
+                if (i > t) {
+                    emit(t, i);
                     tokens_found = true;
                 }
                 if (!remove_punctuation) {
-                    token_queue.add("" + s.charAt(i));
+                    emit(i, i + 1);
                     tokens_found = true;
                 }
-            } else {
-                smallbuf.append(s.charAt(i));
+                t = i + 1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if (t.length() > 0) {
-            token_queue.add(t);
+        if (end > t) {
+            emit(t, end);
             tokens_found = true;
         }
         return tokens_found;
     }
 
+    /**
+     * Passes the token in buf[start..end) to the handler, or adds it to
+     * the queue.
+     */
+    private void emit(int start, int end) {
+        if (handler != null) {
+            handler.token(buf, start, end - start);
+            tokens_emitted++;
+        } else {
+            token_queue.add(new String(buf, start, end - start));
+        }
+    }
+
     /**
      * Refills the buffer and adds end_of_file "\0" at the appropriate place.
      */
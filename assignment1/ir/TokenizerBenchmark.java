@@ -0,0 +1,176 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Johan Boye, KTH, 2018
+ */
+
+package ir;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
+import java.nio.file.Files;
+import java.util.*;
+
+
+/**
+ *  Tokenizes a directory structure the way the Indexer does, once pulling
+ *  every token as a new String from a new Tokenizer per file, and once
+ *  with one reused Tokenizer passing tokens to a handler that looks them
+ *  up in a TermTable, and once more with a Utf8Tokenizer reading the
+ *  bytes directly. Prints the time and the bytes allocated per MB of
+ *  text for each. The files are read into memory before timing.
+ */
+public class TokenizerBenchmark {
+
+    String filename = null;
+    String patternsfile = null;
+    int repetitions = 3;
+
+
+    /**
+     *  Sums the hash codes of the tokens, so that the two ways can be
+     *  checked against each other.
+     */
+    static class Checksum implements Tokenizer.TokenHandler {
+        final TermTable terms = new TermTable();
+        long tokens = 0;
+        long sum = 0;
+
+        public void token( char[] chars, int start, int length ) {
+            sum += terms.intern( chars, start, length ).hashCode();
+            tokens++;
+        }
+    }
+
+
+    public void run() throws IOException {
+        ArrayList<byte[]> files = new ArrayList<byte[]>();
+        readFiles( new File( filename ), files );
+        long bytes = 0;
+        for ( byte[] content : files ) {
+            bytes += content.length;
+        }
+        System.err.println( String.format( "%d files, %.1f MB", files.size(), bytes / 1e6 ));
+        System.err.println( String.format( "%-10s %10s %10s %14s %12s", "mode", "tokens", "ms", "alloc MB/MB", "checksum" ));
+        for ( int r=0; r<repetitions; r++ ) {
+            long startBytes = allocatedBytes();
+            long startTime = System.nanoTime();
+            long tokens = 0, sum = 0;
+            for ( byte[] content : files ) {
+                Tokenizer tok = new Tokenizer( reader( content ), true, false, true, patternsfile );
+                while ( tok.hasMoreTokens() ) {
+                    sum += tok.nextToken().hashCode();
+                    tokens++;
+                }
+            }
+            report( "strings", tokens, startTime, startBytes, bytes, sum );
+
+            startBytes = allocatedBytes();
+            startTime = System.nanoTime();
+            Tokenizer tok = new Tokenizer( null, true, false, true, patternsfile );
+            Checksum checksum = new Checksum();
+            for ( byte[] content : files ) {
+                tok.reset( reader( content ));
+                tok.tokenize( checksum );
+            }
+            report( "callback", checksum.tokens, startTime, startBytes, bytes, checksum.sum );
+
+            startBytes = allocatedBytes();
+            startTime = System.nanoTime();
+            Utf8Tokenizer utf8 = new Utf8Tokenizer( true, false, true, patternsfile );
+            checksum = new Checksum();
+            for ( byte[] content : files ) {
+                utf8.reset( ByteBuffer.wrap( content ));
+                utf8.tokenize( checksum );
+            }
+            report( "utf8", checksum.tokens, startTime, startBytes, bytes, checksum.sum );
+        }
+    }
+
+
+    static Reader reader( byte[] content ) {
+        return new InputStreamReader( new ByteArrayInputStream( content ), StandardCharsets.UTF_8 );
+    }
+
+
+    static void report( String mode, long tokens, long startTime, long startBytes, long bytes, long sum ) {
+        long allocated = allocatedBytes() - startBytes;
+        System.err.println( String.format( "%-10s %10d %10d %14.1f %12x", mode, tokens,
+                                           ( System.nanoTime() - startTime ) / 1000000,
+                                           (double) allocated / bytes, sum ));
+    }
+
+
+    /** The bytes allocated so far by this thread, or 0 if the JVM cannot tell. */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( bean instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+        }
+        return 0;
+    }
+
+
+    static void readFiles( File f, List<byte[]> files ) throws IOException {
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        readFiles( new File( f, fs[i] ), files );
+                    }
+                }
+            } else {
+                files.add( Files.readAllBytes( f.toPath() ));
+            }
+        }
+    }
+
+
+    /** Prints usage information. */
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -f <filename> : name of file or directory to be tokenized (mandatory)" );
+        System.err.println( "  -p <filename> : name of the file containing regular expressions for non-standard words (optional)" );
+        System.err.println( "  -r <number> : repetitions (optional, default 3)" );
+    }
+
+
+    /** Main */
+    public static void main( String[] args ) throws IOException {
+        TokenizerBenchmark b = new TokenizerBenchmark();
+        // Parse command line arguments
+        int i=0;
+        while ( i<args.length ) {
+            if ( args[i].equals( "-f" ) || args[i].equals( "-p" ) || args[i].equals( "-r" )) {
+                String option = args[i++];
+                if ( i<args.length ) {
+                    if ( option.equals( "-f" )) {
+                        b.filename = args[i];
+                    } else if ( option.equals( "-p" )) {
+                        b.patternsfile = args[i];
+                    } else {
+                        b.repetitions = Integer.parseInt( args[i] );
+                    }
+                    i++;
+                } else {
+                    printHelpMessage();
+                    return;
+                }
+            } else {
+                System.err.println( "Unrecognized parameter: " + args[i] );
+                printHelpMessage();
+                return;
+            }
+        }
+        if ( b.filename != null ) {
+            b.run();
+        } else {
+            printHelpMessage();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  This file is part of the computer assignment for the
+ *  Information Retrieval course at KTH.
+ *
+ *  Johan Boye, 2016
+ */
+
+package ir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Tokenizer that reads UTF-8 bytes from a ByteBuffer (on the heap or
+ * memory-mapped) instead of characters from a Reader. The tokens are the
+ * same as the Tokenizer gives for the same text.
+ *
+ * ASCII bytes are classified and case-folded with a table, made by
+ * running normalize() on every ASCII character once. Only runs of
+ * non-ASCII bytes are decoded, with the same decoder (and replacement of
+ * malformed input) as an InputStreamReader, and normalized a character
+ * at a time.
+ *
+ * A text the Reader-based Tokenizer cannot hold in one buffer is handed
+ * to it as it is, read through a stream over the ByteBuffer, so that
+ * texts longer than BUFFER_LENGTH are split exactly as before.
+ */
+public class Utf8Tokenizer extends Tokenizer {
+
+    /** The normalized form of each ASCII character, or 0 if it cannot occur in a token. */
+    private final char[] ascii = new char[128];
+
+    /** Decodes the runs of non-ASCII bytes. */
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** The characters of a decoded run. */
+    private CharBuffer decoded = CharBuffer.allocate(256);
+
+    /** The text, or null if it is read by the Tokenizer. */
+    private ByteBuffer text = null;
+
+    /** A view of the text, limited to the run being decoded. */
+    private ByteBuffer run = null;
+
+    /** True once the text has been scanned. */
+    private boolean scanned = false;
+
+    /**
+     * Constructor. The parameters are those of the Tokenizer; the text is
+     * given to reset().
+     */
+    public Utf8Tokenizer(boolean case_folding, boolean remove_diacritics, boolean remove_punctuation,
+            String pattern_file) {
+        super(null, case_folding, remove_diacritics, remove_punctuation, pattern_file);
+        char[] c = new char[1];
+        for (int b = 1; b < 128; b++) {
+            c[0] = (char) b;
+            if (normalize(c, 0)) {
+                ascii[b] = c[0];
+            }
+        }
+    }
+
+    /**
+     * Makes the tokenizer read the bytes from the position to the limit of
+     * <code>text</code>, which is not changed.
+     */
+    public void reset(ByteBuffer text) {
+        scanned = false;
+        if (text.remaining() < BUFFER_LENGTH) {
+            this.text = text.duplicate();
+            run = text.duplicate();
+            super.reset((Reader) null);
+        } else {
+            this.text = null;
+            super.reset(new InputStreamReader(new BufferInputStream(text.duplicate()), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Reads the bytes of a ByteBuffer without copying them all first. It
+     * must tell how many bytes are available, as a ByteArrayInputStream
+     * does: the InputStreamReader returns what it has decoded once the
+     * stream has none, and the Tokenizer takes a short read for the end.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer in;
+
+        BufferInputStream(ByteBuffer in) {
+            this.in = in;
+        }
+
+        @Override
+        public int available() {
+            return in.remaining();
+        }
+
+        @Override
+        public int read() {
+            return in.hasRemaining() ? in.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, in.remaining());
+            in.get(b, off, len);
+            return len;
+        }
+    }
+
+    @Override
+    public void reset(Reader reader) {
+        text = null;
+        super.reset(reader);
+    }
+
+    @Override
+    boolean readTokens() throws IOException {
+        if (text == null) {
+            return super.readTokens();
+        }
+        if (scanned) {
+            return false;
+        }
+        scanned = true;
+        return scan();
+    }
+
+    /**
+     * Finds the candidate tokens of the text and passes each to
+     * addTokensToQueue, as readTokens does with the characters of the
+     * buffer: a candidate is a run of characters that can occur in a
+     * token, and the text ends at a 0 character. As there, a candidate
+     * still open at the end of the text is not added.
+     */
+    private boolean scan() {
+        ByteBuffer in = text;
+        int pos = in.position();
+        int limit = in.limit();
+        int length = 0;
+        boolean tokens_found = false;
+        while (pos < limit) {
+            byte b = in.get(pos);
+            if (b > 0) {
+                char c = ascii[b];
+                if (c != 0) {
+                    buf[length++] = c;
+                } else if (length > 0) {
+                    tokens_found |= addCandidate(length);
+                    length = 0;
+                }
+                pos++;
+            } else if (b == 0) {
+                break;
+            } else {
+                int end = pos + 1;
+                while (end < limit && in.get(end) < 0) {
+                    end++;
+                }
+                CharBuffer chars = decode(pos, end);
+                while (chars.hasRemaining()) {
+                    buf[length] = chars.get();
+                    if (normalize(buf, length)) {
+                        length++;
+                    } else if (length > 0) {
+                        tokens_found |= addCandidate(length);
+                        length = 0;
+                    }
+                }
+                pos = end;
+            }
+        }
+        return tokens_found;
+    }
+
+    /**
+     * Adds the tokens of the candidate in buf[0..length).
+     */
+    private boolean addCandidate(int length) {
+        token_start = 0;
+        ptr = length;
+        boolean found = addTokensToQueue();
+        token_start = -1;
+        return found;
+    }
+
+    /**
+     * Decodes text[start..end), which holds no ASCII bytes. An incomplete
+     * sequence at the end of the text is left out: an InputStreamReader
+     * returns the characters before it in a short read, which the
+     * Tokenizer takes for the end of the text.
+     */
+    private CharBuffer decode(int start, int end) {
+        if (decoded.capacity() < end - start) {
+            decoded = CharBuffer.allocate(end - start);
+        }
+        run.limit(end).position(start);
+        decoded.clear();
+        decoder.reset();
+        boolean endOfText = end == text.limit();
+        decoder.decode(run, decoded, !endOfText);
+        if (!endOfText) {
+            decoder.flush(decoded);
+        }
+        decoded.flip();
+        return decoded;
+    }
+}